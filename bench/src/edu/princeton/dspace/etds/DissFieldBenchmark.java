@@ -0,0 +1,190 @@
+package edu.princeton.dspace.etds;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Cost of reading the department, embargo code and embargo end of a ProQuest DISS_submission file.
+ * domTrio is the way ETDImport used to do it, a fresh DocumentBuilderFactory and a full DOM parse for each
+ * of the three values; domOnce parses the file once; stax reads the same values with the
+ * DissFieldExtractor BatchMetadata uses.  Run with the GC profiler to compare the allocation per file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DissFieldBenchmark {
+
+    static final String SYNTHETIC = "synthetic";
+
+    // SYNTHETIC, or the path of a ProQuest XML file; a DTD it refers to must be next to it
+    @Param({SYNTHETIC})
+    public String source;
+
+    // number of abstract paragraphs of the synthetic file
+    @Param({"10", "200"})
+    public int paragraphs;
+
+    private static final String[] PATHS = {
+            BatchMetadata.DEPARTMENT, BatchMetadata.EMBARGO_CODE, BatchMetadata.EMBARGO_END
+    };
+
+    private File xmlFile;
+    private boolean temporary;
+    private DissFieldExtractor extractor;
+
+    @Setup
+    public void setup() throws Exception {
+        Logger.getRootLogger().setLevel(Level.WARN);
+        if (SYNTHETIC.equals(source)) {
+            xmlFile = File.createTempFile("diss", ".xml");
+            temporary = true;
+            writeSubmission(xmlFile, paragraphs);
+        } else {
+            xmlFile = new File(source);
+        }
+        extractor = new DissFieldExtractor(PATHS);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (temporary) {
+            xmlFile.delete();
+        }
+    }
+
+    @Benchmark
+    public Object domTrio() throws Exception {
+        Object[] values = new Object[3];
+        values[0] = getDepartmentName(xmlFile);
+        values[1] = getEmbargoCode(xmlFile);
+        values[2] = getEmbargoEnd(xmlFile);
+        return values;
+    }
+
+    @Benchmark
+    public Object domOnce() throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        Document doc = factory.newDocumentBuilder().parse(xmlFile);
+        Object[] values = new Object[3];
+        values[0] = doc.getElementsByTagName("DISS_inst_contact").item(0).getTextContent();
+        values[1] = attribute(doc, "DISS_submission", "embargo_code");
+        values[2] = parseDate(attribute(doc, "DISS_sales_restriction", "remove"));
+        return values;
+    }
+
+    @Benchmark
+    public Object stax() throws Exception {
+        Map<String, String> fields = extractor.extract(xmlFile);
+        Object[] values = new Object[3];
+        values[0] = fields.get(BatchMetadata.DEPARTMENT);
+        values[1] = fields.get(BatchMetadata.EMBARGO_CODE);
+        values[2] = parseDate(fields.get(BatchMetadata.EMBARGO_END));
+        return values;
+    }
+
+    // the three lookups as ETDImport made them before BatchMetadata
+
+    private static String getDepartmentName(File xmlfile) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        DocumentBuilder builder = factory.newDocumentBuilder();
+        Document doc = builder.parse(xmlfile);
+        return doc.getElementsByTagName("DISS_inst_contact").item(0).getTextContent();
+    }
+
+    private static String getEmbargoCode(File xmlfile) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        DocumentBuilder builder = factory.newDocumentBuilder();
+        Document doc = builder.parse(xmlfile);
+        return attribute(doc, "DISS_submission", "embargo_code");
+    }
+
+    private static Date getEmbargoEnd(File xmlfile) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        DocumentBuilder builder = factory.newDocumentBuilder();
+        Document doc = builder.parse(xmlfile);
+        return parseDate(attribute(doc, "DISS_sales_restriction", "remove"));
+    }
+
+    private static String attribute(Document doc, String tag, String attribute) {
+        Node node = doc.getElementsByTagName(tag).item(0);
+        if (node instanceof Element) {
+            return ((Element) node).getAttribute(attribute);
+        }
+        return null;
+    }
+
+    private static Date parseDate(String s) throws Exception {
+        if (s == null || s.equals("")) {
+            return null;
+        }
+        DateFormat format = new SimpleDateFormat("MM/dd/yyyy", Locale.ENGLISH);
+        return format.parse(s);
+    }
+
+    /**
+     * Write a DISS_submission file laid out like ProQuest's, with an abstract of the given number of
+     * paragraphs and the sales restriction at the end
+     */
+    static void writeSubmission(File file, int paragraphs) throws Exception {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<DISS_submission publishing_option=\"0\" embargo_code=\"4\" third_party_search=\"Y\">\n");
+            out.write("<DISS_authorship><DISS_author type=\"primary\"><DISS_name><DISS_surname>Doe</DISS_surname>"
+                    + "<DISS_fname>Jane</DISS_fname><DISS_middle>Q</DISS_middle></DISS_name></DISS_author>"
+                    + "</DISS_authorship>\n");
+            out.write("<DISS_description page_count=\"212\" type=\"doctoral\" external_id=\"http://dissertations.umi.com/princeton:10001\">\n");
+            out.write("<DISS_title>Synthetic Studies of Benchmarked Dissertations</DISS_title>\n");
+            out.write("<DISS_dates><DISS_comp_date>2016</DISS_comp_date><DISS_accept_date>01/01/2016</DISS_accept_date></DISS_dates>\n");
+            out.write("<DISS_degree>Ph.D.</DISS_degree>\n");
+            out.write("<DISS_institution><DISS_inst_code>0181</DISS_inst_code><DISS_inst_name>Princeton University</DISS_inst_name>"
+                    + "<DISS_inst_contact>Chemistry</DISS_inst_contact></DISS_institution>\n");
+            out.write("<DISS_advisor><DISS_name><DISS_surname>Smith</DISS_surname><DISS_fname>Alan</DISS_fname></DISS_name></DISS_advisor>\n");
+            out.write("<DISS_categorization><DISS_category><DISS_cat_code>0485</DISS_cat_code><DISS_cat_desc>Chemistry</DISS_cat_desc>"
+                    + "</DISS_category><DISS_keyword>synthesis, benchmarks</DISS_keyword><DISS_language>en</DISS_language>"
+                    + "</DISS_categorization>\n");
+            out.write("</DISS_description>\n<DISS_content>\n<DISS_abstract>\n");
+            for (int i = 0; i < paragraphs; i++) {
+                out.write("<DISS_para>Paragraph " + i + " of the abstract describes the work in some detail, "
+                        + "with enough text to resemble a real abstract &amp; the entities it may hold.</DISS_para>\n");
+            }
+            out.write("</DISS_abstract>\n<DISS_binary type=\"PDF\">Doe_princeton_0181D_10001.pdf</DISS_binary>\n</DISS_content>\n");
+            out.write("<DISS_restriction><DISS_sales_restriction code=\"1\" remove=\"12/31/2018\"/></DISS_restriction>\n");
+            out.write("</DISS_submission>\n");
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package edu.princeton.dspace.etds;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.marc4j.MarcStreamWriter;
+import org.marc4j.marc.ControlField;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
+import org.marc4j.marc.Subfield;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the individual rules ETDMARCProcessor applies to a record, and of writing the record with
+ * MarcStreamWriter.  Each invocation works on the next of a set of decoded records.
+ *
+ * Rules which change their field are undone after each invocation by restoring the few values they set,
+ * so the score of fix790 and fixDeptName includes a handful of field writes but no decoding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarcRuleBenchmark {
+
+    // ProQuestRecords.SYNTHETIC, or the path of a fixture file of ProQuest MARC records
+    @Param({ProQuestRecords.SYNTHETIC})
+    public String source;
+
+    // number of synthetic records
+    @Param({"1000"})
+    public int count;
+
+    @Param({"config/etds/config.xml"})
+    public String config;
+
+    private HashMap<String, String> deptnames;
+
+    private Record[] records;
+    private ControlField[] f008s;
+
+    private DataField[] f710s;
+    private Subfield[] f710a;
+    private Subfield[] f710b;
+    private String[] f710aData;
+    private String[] f710bData;
+    private char[] f710ind2;
+
+    private DataField[] f790s;
+    private Subfield[] f790a;
+    private Subfield[] f790e;
+    private String[] f790aData;
+    private char[] f790ind2;
+
+    private ByteArrayOutputStream bytes;
+    private MarcStreamWriter writer;
+
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        Logger.getRootLogger().setLevel(Level.WARN);
+        deptnames = ProQuestRecords.loadDepartments(new File(config));
+        List<byte[]> encoded = ProQuestRecords.load(source, count, deptnames);
+
+        int n = encoded.size();
+        records = new Record[n];
+        f008s = new ControlField[n];
+        f710s = new DataField[n];
+        f710a = new Subfield[n];
+        f710b = new Subfield[n];
+        f710aData = new String[n];
+        f710bData = new String[n];
+        f710ind2 = new char[n];
+        f790s = new DataField[n];
+        f790a = new Subfield[n];
+        f790e = new Subfield[n];
+        f790aData = new String[n];
+        f790ind2 = new char[n];
+
+        for (int i = 0; i < n; i++) {
+            Record record = ProQuestRecords.decode(encoded.get(i));
+            records[i] = record;
+            f008s[i] = (ControlField) record.getVariableField("008");
+
+            // a fixture record may lack the 710 or its subfield 'b'; fixDeptName is not timed on those
+            DataField f710 = (DataField) record.getVariableField("710");
+            if (f710 != null && f710.getSubfield('b') != null) {
+                f710s[i] = f710;
+                f710a[i] = f710.getSubfield('a');
+                f710b[i] = f710.getSubfield('b');
+                f710aData[i] = f710a[i] != null ? f710a[i].getData() : null;
+                f710bData[i] = f710b[i].getData();
+                f710ind2[i] = f710.getIndicator2();
+            }
+
+            // the last 790 field is the adviser rather than the school code
+            List<?> f790 = (List<?>) record.getVariableFields("790");
+            DataField adviser = f790.isEmpty() ? null : (DataField) f790.get(f790.size() - 1);
+            f790s[i] = adviser;
+            if (adviser != null) {
+                f790a[i] = adviser.getSubfield('a');
+                f790e[i] = adviser.getSubfield('e');
+                f790aData[i] = f790a[i] != null ? f790a[i].getData() : null;
+                f790ind2[i] = adviser.getIndicator2();
+            }
+        }
+
+        bytes = new ByteArrayOutputStream(64 * 1024);
+        writer = new MarcStreamWriter(bytes);
+    }
+
+    private int nextRecord() {
+        int i = next;
+        next = i + 1 == records.length ? 0 : i + 1;
+        return i;
+    }
+
+    @Benchmark
+    public String getTitle() {
+        return ETDMARCProcessor.getTitle(records[nextRecord()]);
+    }
+
+    @Benchmark
+    public ControlField fix008() {
+        ControlField f = f008s[nextRecord()];
+        ETDMARCProcessor.fix008(f);
+        return f;
+    }
+
+    @Benchmark
+    public boolean fix790() {
+        int i = nextRecord();
+        DataField f = f790s[i];
+        if (f == null) {
+            return false;
+        }
+        boolean kept = ETDMARCProcessor.fix790(f);
+
+        f.setTag("790");
+        f.setIndicator2(f790ind2[i]);
+        if (f790a[i] != null) {
+            f790a[i].setData(f790aData[i]);
+        }
+        if (f790e[i] != null && f.getSubfield('e') == null) {
+            f.addSubfield(f790e[i]);
+        }
+        return kept;
+    }
+
+    @Benchmark
+    public DataField fixDeptName() {
+        int i = nextRecord();
+        DataField f = f710s[i];
+        if (f == null) {
+            return null;
+        }
+        ETDMARCProcessor.fixDeptName(f, deptnames);
+
+        f.setIndicator2(f710ind2[i]);
+        if (f710a[i] != null) {
+            f710a[i].setData(f710aData[i]);
+        }
+        f710b[i].setData(f710bData[i]);
+        if (f.getSubfield('b') == null) {
+            f.addSubfield(f710b[i]);
+        }
+        return f;
+    }
+
+    @Benchmark
+    public int serialize() {
+        bytes.reset();
+        writer.write(records[nextRecord()]);
+        return bytes.size();
+    }
+}
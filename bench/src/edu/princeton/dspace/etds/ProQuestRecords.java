@@ -0,0 +1,172 @@
+package edu.princeton.dspace.etds;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.marc4j.MarcStreamReader;
+import org.marc4j.MarcStreamWriter;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * MARC records for the benchmarks, either synthetic records laid out like those delivered by ProQuest or
+ * the records of a fixture file.  Records are kept encoded so that each benchmark can decode a fresh copy
+ * when it changes the record.
+ */
+public class ProQuestRecords {
+
+    // Value of the source parameter selecting synthetic records
+    public static final String SYNTHETIC = "synthetic";
+
+    private static final MarcFactory factory = MarcFactory.newInstance();
+
+    /**
+     * @param source  SYNTHETIC, or the path of a file of MARC records
+     * @param count   number of synthetic records
+     * @param deptnames  department names used by ProQuest mapped to those used by the OPAC
+     * @return the encoded records
+     */
+    public static List<byte[]> load(String source, int count, HashMap<String, String> deptnames) throws IOException {
+        List<byte[]> records = new ArrayList<byte[]>();
+        if (SYNTHETIC.equals(source)) {
+            // marc4j writes and reads records as ISO-8859-1 unless told otherwise, as ETDMARCProcessor does
+            List<String> depts = new ArrayList<String>();
+            for (String dept : deptnames.keySet()) {
+                if (dept.matches("\\p{ASCII}*")) {
+                    depts.add(dept);
+                }
+            }
+            Collections.sort(depts);
+            for (int i = 0; i < count; i++) {
+                records.add(encode(synthetic(i, depts.get(i % depts.size()))));
+            }
+        } else {
+            InputStream in = new FileInputStream(source);
+            try {
+                MarcStreamReader reader = new MarcStreamReader(in);
+                while (reader.hasNext()) {
+                    records.add(encode(reader.next()));
+                }
+            } finally {
+                in.close();
+            }
+            if (records.isEmpty()) {
+                throw new IOException("no records in " + source);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * A record with the fields ETDMARCProcessor sees in ProQuest deliveries: the fields it removes, two
+     * 790 fields, one of them the school code, and an 856 field with ProQuest's indicators
+     */
+    static Record synthetic(int n, String dept) {
+        Record record = factory.newRecord("00000nam  2200000   4500");
+        record.addVariableField(factory.newControlField("001", "AAI" + (3400000 + n)));
+        record.addVariableField(factory.newControlField("008", "101115s2010    ||||||||||||||||| ||eng d"));
+
+        DataField f040 = factory.newDataField("040", ' ', ' ');
+        f040.addSubfield(factory.newSubfield('a', "UMI"));
+        f040.addSubfield(factory.newSubfield('c', "UMI"));
+        record.addVariableField(f040);
+
+        record.addVariableField(dataField("100", '1', ' ', 'a', "Author, Number " + n + "."));
+        record.addVariableField(dataField("245", '1', '0', 'a', title(n) + "."));
+        record.addVariableField(dataField("300", ' ', ' ', 'a', (100 + n % 300) + " p."));
+        record.addVariableField(dataField("500", ' ', ' ', 'a',
+                "Source: Dissertation Abstracts International, Volume: 72-01, Section: B, page: " + n + "."));
+        record.addVariableField(dataField("500", ' ', ' ', 'a', "Adviser: Some Adviser."));
+        record.addVariableField(dataField("502", ' ', ' ', 'a', "Thesis (Ph.D.)--Princeton University, 2010."));
+        record.addVariableField(dataField("520", ' ', ' ', 'a', abstractText(n)));
+        record.addVariableField(dataField("590", ' ', ' ', 'a', "School code: 0181."));
+        record.addVariableField(dataField("650", ' ', '4', 'a', "Chemistry, Physical."));
+        record.addVariableField(dataField("690", ' ', ' ', 'a', "0494"));
+
+        DataField f710 = factory.newDataField("710", '2', '0');
+        f710.addSubfield(factory.newSubfield('a', "Princeton University."));
+        f710.addSubfield(factory.newSubfield('b', dept + "."));
+        record.addVariableField(f710);
+
+        record.addVariableField(dataField("773", '0', ' ', 't', "Dissertation Abstracts International"));
+        record.addVariableField(dataField("790", ' ', ' ', 'a', "0181"));
+
+        DataField adviser = factory.newDataField("790", '1', '0');
+        adviser.addSubfield(factory.newSubfield('a', "Adviser, Some,"));
+        adviser.addSubfield(factory.newSubfield('e', "advisor"));
+        record.addVariableField(adviser);
+
+        record.addVariableField(dataField("791", ' ', ' ', 'a', "Ph.D."));
+        record.addVariableField(dataField("792", ' ', ' ', 'a', "2010"));
+        record.addVariableField(dataField("856", '4', '1', 'u',
+                "http://gateway.proquest.com/openurl?url_ver=Z39.88-2004&res_dat=xri:pqdiss&rft_dat=xri:pqdiss:" +
+                        (3400000 + n)));
+        return record;
+    }
+
+    /**
+     * @return the title of synthetic record n, without its final period
+     */
+    static String title(int n) {
+        return "Title number " + n + ": a study of things";
+    }
+
+    private static String abstractText(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 12; i++) {
+            sb.append("Sentence ").append(i).append(" of the abstract of dissertation ").append(n).append(". ");
+        }
+        return sb.toString();
+    }
+
+    private static DataField dataField(String tag, char ind1, char ind2, char code, String data) {
+        DataField field = factory.newDataField(tag, ind1, ind2);
+        field.addSubfield(factory.newSubfield(code, data));
+        return field;
+    }
+
+    /**
+     * Read the department names used by ProQuest and the OPAC from the collections in config.xml
+     */
+    public static HashMap<String, String> loadDepartments(File config) throws Exception {
+        HashMap<String, String> deptnames = new HashMap<String, String>();
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(config);
+        NodeList collections = doc.getElementsByTagName("collection");
+        for (int i = 0; i < collections.getLength(); i++) {
+            Element collection = (Element) collections.item(i);
+            NodeList name = collection.getElementsByTagName("name");
+            NodeList opacname = collection.getElementsByTagName("opacname");
+            if (name.getLength() > 0 && opacname.getLength() > 0) {
+                deptnames.put(name.item(0).getTextContent(), opacname.item(0).getTextContent());
+            }
+        }
+        if (deptnames.isEmpty()) {
+            throw new IllegalArgumentException("no collections in " + config.getPath());
+        }
+        return deptnames;
+    }
+
+    public static byte[] encode(Record record) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new MarcStreamWriter(out).write(record);
+        return out.toByteArray();
+    }
+
+    public static Record decode(byte[] bytes) {
+        return new MarcStreamReader(new ByteArrayInputStream(bytes)).next();
+    }
+}
@@ -0,0 +1,121 @@
+package edu.princeton.dspace.etds;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.marc4j.MarcStreamWriter;
+import org.marc4j.marc.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the whole per-record transform of ETDMARCProcessor: the ARK lookup against a preloaded
+ * ArkIndex and the cleanup rules, with and without writing the record.  Each invocation decodes a fresh
+ * copy of the record, so the decode benchmark is the baseline to subtract.
+ *
+ * Half of the titles of the synthetic records are in the index, a quarter only match once normalized
+ * and a quarter are missing.  The titles of a fixture file are all indexed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordTransformBenchmark {
+
+    // ProQuestRecords.SYNTHETIC, or the path of a fixture file of ProQuest MARC records
+    @Param({ProQuestRecords.SYNTHETIC})
+    public String source;
+
+    // number of synthetic records
+    @Param({"1000"})
+    public int count;
+
+    @Param({"config/etds/config.xml"})
+    public String config;
+
+    private byte[][] records;
+    private ArkResolver resolver;
+    private MarcFieldRules rules;
+
+    private ByteArrayOutputStream bytes;
+    private MarcStreamWriter writer;
+
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        Logger.getRootLogger().setLevel(Level.WARN);
+        HashMap<String, String> deptnames = ProQuestRecords.loadDepartments(new File(config));
+        List<byte[]> encoded = ProQuestRecords.load(source, count, deptnames);
+        records = encoded.toArray(new byte[encoded.size()][]);
+
+        ArkIndex index = new ArkIndex();
+        for (int i = 0; i < records.length; i++) {
+            String title;
+            if (ProQuestRecords.SYNTHETIC.equals(source)) {
+                if (i % 4 == 3) {
+                    continue;
+                }
+                title = ProQuestRecords.title(i);
+                if (i % 4 == 2) {
+                    title = title.toUpperCase();
+                }
+            } else {
+                title = ETDMARCProcessor.getTitle(ProQuestRecords.decode(records[i]));
+                title = title.replace("--", "-");
+                title = title.substring(0, title.length() - 1);
+            }
+            index.add(title, new TitleKeyTable.Row(i, i));
+            index.addArk(i, "http://arks.princeton.edu/ark:/88435/dsp01" + i);
+        }
+
+        resolver = new ArkResolver(-1, index, null);
+        rules = MarcFieldRules.compile(MarcFieldRules.DEFAULT_REMOVED_FIELDS, deptnames);
+
+        bytes = new ByteArrayOutputStream(64 * 1024);
+        writer = new MarcStreamWriter(bytes);
+    }
+
+    private byte[] nextRecord() {
+        byte[] record = records[next];
+        next = next + 1 == records.length ? 0 : next + 1;
+        return record;
+    }
+
+    @Benchmark
+    public Record decode() {
+        return ProQuestRecords.decode(nextRecord());
+    }
+
+    @Benchmark
+    public Record transform() throws Exception {
+        Record record = ProQuestRecords.decode(nextRecord());
+        ETDMARCProcessor.processRecord(record, next, null, resolver, rules, null);
+        return record;
+    }
+
+    @Benchmark
+    public int transformAndWrite() throws Exception {
+        Record record = ProQuestRecords.decode(nextRecord());
+        ETDMARCProcessor.processRecord(record, next, null, resolver, rules, null);
+        bytes.reset();
+        writer.write(record);
+        return bytes.size();
+    }
+}
@@ -0,0 +1,24 @@
+#!/bin/bash
+# Build the JMH benchmarks in bench/src, together with the sources they measure, into bench/build.
+# JMH_LIB must name a directory holding the JMH jars (jmh-core, jmh-generator-annprocess, jopt-simple and
+# commons-math3); DSPACE_LIB and JAVA_LOCAL_LIB are set as for building the MARC processor.
+
+set -e
+cd "$(dirname "$0")/.."
+
+if [ -z "$JMH_LIB" ]; then
+  echo "Please set JMH_LIB to the directory holding the JMH jars" >&2
+  exit 1
+fi
+
+JMH_CLASSPATH=`find $JMH_LIB -name '*.jar' | tr '\n' ':'`
+BENCH_SOURCE_PATH=`find ./src ./bench/src -name '*.java'`
+
+rm -rf bench/build
+mkdir -p bench/build
+
+/usr/bin/env javac \
+  -d bench/build \
+  -classpath "$JMH_CLASSPATH$DSPACE_LIB:$JAVA_LOCAL_LIB" \
+  -processor org.openjdk.jmh.generators.BenchmarkProcessor \
+  $BENCH_SOURCE_PATH
@@ -1,11 +1,11 @@
 #!/bin/bash
 
-echo "enhanced MARC records: `basename $MARC_IMPORT_PATH`"
-echo ''
-echo -n 'number of records: ' ; cat $MARC_IMPORT_PATH | fgrep 'Princeton University,' | wc -l
-echo -n 'number of matched records: ' ; egrep 'ARK.*http' $MARC_LOG_PATH | wc -l
-echo -n 'number of unmatched records: ' ; fgrep 'NO ARK FOR' $MARC_LOG_PATH | wc -l
-echo ""
-echo "details:"
-echo ""
-egrep '^ARK' $MARC_LOG_PATH | sort
+# ETDMARCProcessor writes its report next to the processed MARC file
+MARC_REPORT_PATH="$MARC_RECORDS_PATH.report.txt"
+
+if [ ! -f "$MARC_REPORT_PATH" ]; then
+  echo "No report found at $MARC_REPORT_PATH" >&2
+  exit 1
+fi
+
+cat "$MARC_REPORT_PATH"
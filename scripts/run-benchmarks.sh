@@ -0,0 +1,22 @@
+#!/bin/bash
+# Run the benchmarks built by build-benchmarks.sh with the GC profiler, writing the results to
+# bench/results.json.  Any arguments are passed to JMH, for instance to run one benchmark on a fixture:
+#
+#   scripts/run-benchmarks.sh MarcRuleBenchmark -p source=$HOME/marc_imports/proquest_import.mrc
+
+set -e
+cd "$(dirname "$0")/.."
+
+if [ -z "$JMH_LIB" ]; then
+  echo "Please set JMH_LIB to the directory holding the JMH jars" >&2
+  exit 1
+fi
+
+JMH_CLASSPATH=`find $JMH_LIB -name '*.jar' | tr '\n' ':'`
+
+/usr/bin/env java \
+  -classpath "bench/build:$JMH_CLASSPATH$JAVA_LOCAL_LIB:$DSPACE_LIB" \
+  org.openjdk.jmh.Main \
+  -prof gc \
+  -rf json -rff bench/results.json \
+  "$@"
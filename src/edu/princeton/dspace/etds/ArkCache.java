@@ -0,0 +1,314 @@
+package edu.princeton.dspace.etds;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent cache of the ARKs resolved by ETDMARCProcessor, so that records delivered again by ProQuest are
+ * resolved without querying the database.
+ *
+ * Entries are keyed by the exact title and the community id, and hold the number of items the title was
+ * found on, so that a cached match is the one the lookup would give; they are kept in a compact append-only
+ * file.  The entries of the community being processed are loaded into
+ * memory when the cache is opened.  An entry is dropped when the title value it was resolved from no longer
+ * exists, which is checked for all entries with a single query listing the title values of the community.
+ */
+public class ArkCache {
+
+    static Logger logger = Logger.getLogger(ArkCache.class);
+
+    private static final int MAGIC = 0x41524b43; // "ARKC"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+
+    static final String select_title_ids = "SELECT resource_id,metadata_value_id FROM METADATAVALUE " +
+            "WHERE " + ETDMARCProcessor.titles_in_items + " " +
+            "AND " + ETDMARCProcessor.in_community;
+
+    /**
+     * A cached resolution
+     */
+    static class Entry {
+        final String title;
+        final int community;
+        final int resourceId;
+        final int metadataValueId;
+        final int candidates;
+        final String ark;
+
+        Entry(String title, int community, int resourceId, int metadataValueId, int candidates, String ark) {
+            this.title = title;
+            this.community = community;
+            this.resourceId = resourceId;
+            this.metadataValueId = metadataValueId;
+            this.candidates = candidates;
+            this.ark = ark;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(title);
+            out.writeInt(community);
+            out.writeInt(resourceId);
+            out.writeInt(metadataValueId);
+            out.writeInt(candidates);
+            out.writeUTF(ark);
+        }
+
+        static Entry read(DataInputStream in) throws IOException {
+            return new Entry(in.readUTF(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readUTF());
+        }
+
+        /**
+         * @return the number of bytes write() writes
+         */
+        int size() {
+            return 2 + utfLength(title) + 16 + 2 + utfLength(ark);
+        }
+    }
+
+    private final File file;
+    private final int community;
+
+    // entries of the community, by title
+    private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+    private DataOutputStream out = null;
+
+    private int hits = 0;
+    private int added = 0;
+
+    private ArkCache(File file, int community) {
+        this.file = file;
+        this.community = community;
+    }
+
+    /**
+     * Open the cache file, creating it if needed, and drop the entries of the community whose title value
+     * has changed since they were written
+     *
+     * @param file       the cache file
+     * @param db         connection used to check the cached entries
+     * @param community  id of the community holding the ETD collections
+     */
+    public static ArkCache open(File file, Connection db, int community) throws IOException, SQLException {
+        ArkCache cache = new ArkCache(file, community);
+        List<Entry> others = new ArrayList<Entry>();
+        int total = cache.load(others);
+
+        int stale = cache.validate(db);
+        if (stale > 0) {
+            logger.info("Dropped " + stale + " stale ARK cache entries for community " + community);
+        }
+
+        // Rewrite the file once enough of it is stale or superseded
+        int live = cache.entries.size() + others.size();
+        if (total > 2 * live) {
+            cache.rewrite(others);
+        }
+
+        cache.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        logger.info("Loaded " + cache.entries.size() + " ARK cache entries for community " + community + " from " +
+                file.getPath());
+        return cache;
+    }
+
+    /**
+     * Read all entries from the file, cutting off a partly written last entry
+     *
+     * @param others  receives the entries of other communities
+     * @return the number of entries in the file
+     */
+    private int load(List<Entry> others) throws IOException {
+        boolean older = file.length() >= HEADER_SIZE && isOlderVersion();
+        if (older) {
+            // the entries of an older version are not keyed the same way; their titles are resolved again
+            logger.info("Starting " + file.getPath() + " afresh: it was written by an older version");
+        }
+        if (!file.exists() || file.length() == 0 || older) {
+            DataOutputStream header = new DataOutputStream(new FileOutputStream(file));
+            try {
+                header.writeInt(MAGIC);
+                header.writeInt(VERSION);
+            } finally {
+                header.close();
+            }
+            return 0;
+        }
+
+        int total = 0;
+        long good = HEADER_SIZE;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file.getPath() + " is not an ARK cache file");
+            }
+            while (true) {
+                Entry entry;
+                try {
+                    entry = Entry.read(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                total = total + 1;
+                good = good + entry.size();
+                if (entry.community == community) {
+                    // later entries supersede earlier ones
+                    entries.put(entry.title, entry);
+                } else {
+                    others.add(entry);
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        if (good < file.length()) {
+            logger.warn("Cutting off partly written entry at offset " + good + " of " + file.getPath());
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(good);
+            } finally {
+                raf.close();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return true if the file is an ARK cache file of an earlier version
+     */
+    private boolean isOlderVersion() throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt() == MAGIC && in.readInt() < VERSION;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Drop the entries whose title value no longer belongs to the item
+     *
+     * @return the number of entries dropped
+     */
+    private int validate(Connection db) throws SQLException {
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        HashMap<Integer, Integer> current = new HashMap<Integer, Integer>();
+        PreparedStatement stmt = db.prepareStatement(select_title_ids);
+        try {
+            stmt.setInt(1, community);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                current.put(rs.getInt("metadata_value_id"), rs.getInt("resource_id"));
+            }
+            rs.close();
+        } finally {
+            stmt.close();
+        }
+
+        int stale = 0;
+        Iterator<Entry> iter = entries.values().iterator();
+        while (iter.hasNext()) {
+            Entry entry = iter.next();
+            Integer resourceId = current.get(entry.metadataValueId);
+            if (resourceId == null || resourceId != entry.resourceId) {
+                iter.remove();
+                stale = stale + 1;
+            }
+        }
+        return stale;
+    }
+
+    private void rewrite(List<Entry> others) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream rewritten = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+        try {
+            rewritten.writeInt(MAGIC);
+            rewritten.writeInt(VERSION);
+            for (Entry entry : others) {
+                entry.write(rewritten);
+            }
+            for (Entry entry : entries.values()) {
+                entry.write(rewritten);
+            }
+        } finally {
+            rewritten.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("cannot replace " + file.getPath() + " with " + tmp.getPath());
+        }
+        logger.info("Rewrote " + file.getPath() + " with " + (others.size() + entries.size()) + " entries");
+    }
+
+    /**
+     * @return the cached match for the title, or null if the title has not been resolved before
+     */
+    public synchronized ArkMatch get(String title) {
+        Entry entry = entries.get(title);
+        if (entry == null) {
+            return null;
+        }
+        hits = hits + 1;
+        return new ArkMatch(entry.resourceId, entry.metadataValueId, entry.ark, ArkMatch.CACHED, entry.candidates);
+    }
+
+    /**
+     * Remember the item and ARK found for a title
+     */
+    public synchronized void put(String title, ArkMatch match) throws IOException {
+        if (match.getArk() == null || utfLength(title) > 65535) {
+            return;
+        }
+        Entry entry = new Entry(title, community, match.getResourceId(), match.getMetadataValueId(),
+                match.getCandidates(), match.getArk());
+        entries.put(entry.title, entry);
+        entry.write(out);
+        added = added + 1;
+    }
+
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        logger.info("ARK cache " + file.getPath() + ": " + hits + " hits, " + added + " entries added");
+    }
+
+    /**
+     * @return the number of bytes DataOutputStream.writeUTF writes for the characters of s
+     */
+    private static int utfLength(String s) {
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                len = len + 1;
+            } else if (c > 0x07FF) {
+                len = len + 3;
+            } else {
+                len = len + 2;
+            }
+        }
+        return len;
+    }
+}
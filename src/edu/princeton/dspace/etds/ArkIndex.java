@@ -0,0 +1,125 @@
+package edu.princeton.dspace.etds;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * In-memory index of the titles, alternate titles and ARKs of all items in a community.  The index is
+ * loaded once with two queries so that ETDMARCProcessor can resolve every MARC record with hash lookups
+ * instead of running several SQL statements per record.
+ *
+ * Lookups follow ETDMARCProcessor.findArk: the exact title is tried first, then the upper case
+ * simplified title.
+ */
+public class ArkIndex {
+
+    static Logger logger = Logger.getLogger(ArkIndex.class);
+
+    static final String select_arks = "SELECT resource_id,text_value FROM METADATAVALUE " +
+            "WHERE RESOURCE_TYPE_ID = 2 AND metadata_field_id  = 25 " +
+            "AND " + ETDMARCProcessor.in_community;
+
+    // title -> the values carrying that title, in the order the database returned them
+    private HashMap<String, List<TitleKeyTable.Row>> byTitle = new HashMap<String, List<TitleKeyTable.Row>>();
+
+    // upper case simplified title -> the values carrying that title
+    private TitleKeyTable byUpperTitle = new TitleKeyTable();
+
+    // item id -> ARK
+    private HashMap<Integer, String> arks = new HashMap<Integer, String>();
+
+    ArkIndex() {
+    }
+
+    /**
+     * Load the titles and ARKs of all items in the given community
+     *
+     * @param db            connection to the DSpace database
+     * @param parentCommId  id of the community holding the ETD collections
+     */
+    public static ArkIndex load(Connection db, int parentCommId) throws SQLException {
+        ArkIndex index = new ArkIndex();
+        long start = System.currentTimeMillis();
+
+        PreparedStatement stmt = db.prepareStatement(TitleKeyTable.select_titles);
+        try {
+            stmt.setInt(1, parentCommId);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                String title = rs.getString("text_value");
+                if (title == null) {
+                    continue;
+                }
+                index.add(title, new TitleKeyTable.Row(rs.getInt("resource_id"), rs.getInt("metadata_value_id")));
+            }
+            rs.close();
+        } finally {
+            stmt.close();
+        }
+
+        stmt = db.prepareStatement(select_arks);
+        try {
+            stmt.setInt(1, parentCommId);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                index.addArk(rs.getInt("resource_id"), rs.getString("text_value"));
+            }
+            rs.close();
+        } finally {
+            stmt.close();
+        }
+
+        logger.info("Loaded " + index.byTitle.size() + " titles and " + index.arks.size() + " ARKs for community " +
+                parentCommId + " in " + (System.currentTimeMillis() - start) + " ms");
+        return index;
+    }
+
+    /**
+     * Add a title or alternate title value of an item
+     */
+    void add(String title, TitleKeyTable.Row row) {
+        TitleKeyTable.add(byTitle, title, row);
+        byUpperTitle.add(title, row);
+    }
+
+    /**
+     * Add an ARK of an item; select_ark takes the first ARK of an item, so only the first one is kept
+     */
+    void addArk(int resourceId, String ark) {
+        if (!arks.containsKey(resourceId)) {
+            arks.put(resourceId, ark);
+        }
+    }
+
+    /**
+     * @return the item with the given title and its ARK, or null if no item carries the title
+     */
+    public ArkMatch find(String title) {
+        List<TitleKeyTable.Row> rows = byTitle.get(title);
+        int kind = ArkMatch.EXACT;
+        TitleKeyTable.Row row = ETDMARCProcessor.pickMatch(title, rows);
+        if (row == null) {
+            String upper = TitleNormalizer.normalize(title);
+            rows = byUpperTitle.get(upper);
+            kind = ArkMatch.NORMALIZED;
+            row = ETDMARCProcessor.pickMatch(upper, rows);
+        }
+        if (row == null) {
+            return null;
+        }
+        return new ArkMatch(row.resourceId, row.metadataValueId, arks.get(row.resourceId), kind, rows.size());
+    }
+
+    /**
+     * @return the number of distinct titles in the index
+     */
+    public int size() {
+        return byTitle.size();
+    }
+}
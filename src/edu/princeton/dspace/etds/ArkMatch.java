@@ -0,0 +1,62 @@
+package edu.princeton.dspace.etds;
+
+/**
+ * The item found for the title of a MARC record and its ARK
+ */
+public class ArkMatch {
+
+    // How the item was found
+    public static final int EXACT = 0;
+    public static final int NORMALIZED = 1;
+    public static final int CACHED = 2;
+
+    private final int resourceId;
+    private final int metadataValueId;
+    private final String ark;
+    private final int kind;
+    private final int candidates;
+
+    /**
+     * @param resourceId       id of the item
+     * @param metadataValueId  id of the title or alternate title value that matched
+     * @param ark              the ARK of the item, or null if it has none
+     * @param kind             EXACT, NORMALIZED or CACHED
+     * @param candidates       number of items carrying the title
+     */
+    public ArkMatch(int resourceId, int metadataValueId, String ark, int kind, int candidates) {
+        this.resourceId = resourceId;
+        this.metadataValueId = metadataValueId;
+        this.ark = ark;
+        this.kind = kind;
+        this.candidates = candidates;
+    }
+
+    public int getResourceId() {
+        return resourceId;
+    }
+
+    public int getMetadataValueId() {
+        return metadataValueId;
+    }
+
+    /**
+     * @return the ARK of the item, or null if it has none
+     */
+    public String getArk() {
+        return ark;
+    }
+
+    /**
+     * @return EXACT, NORMALIZED or CACHED
+     */
+    public int getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the number of items carrying the title; the last of them was picked
+     */
+    public int getCandidates() {
+        return candidates;
+    }
+}
@@ -0,0 +1,58 @@
+package edu.princeton.dspace.etds;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Finds the item and ARK for the title of a MARC record, consulting in turn the persistent ARK cache, the
+ * preloaded index of the community and the database, whichever of them are in use.
+ */
+public class ArkResolver {
+
+    private final int parentCommunityID;
+    private final ArkIndex arkIndex;
+    private final ArkCache cache;
+
+    /**
+     * @param parentCommunityID  id of the community holding the ETD collections
+     * @param arkIndex           preloaded index of titles and ARKs, or null to query the database
+     * @param cache              persistent cache of earlier resolutions, or null
+     */
+    public ArkResolver(int parentCommunityID, ArkIndex arkIndex, ArkCache cache) {
+        this.parentCommunityID = parentCommunityID;
+        this.arkIndex = arkIndex;
+        this.cache = cache;
+    }
+
+    /**
+     * @param db  connection to the DSpace database; may be null if needsConnection() is false
+     * @return the item carrying the title and its ARK, or null if there is none
+     */
+    public ArkMatch resolve(Connection db, String title) throws SQLException, IOException {
+        ArkMatch match;
+        if (cache != null) {
+            match = cache.get(title);
+            if (match != null) {
+                RecordLog.info("cached match for '{}' to id {}", title, match.getResourceId());
+                return match;
+            }
+        }
+        if (arkIndex != null) {
+            match = arkIndex.find(title);
+        } else {
+            match = ETDMARCProcessor.findArk(db, title, parentCommunityID);
+        }
+        if (match != null && cache != null) {
+            cache.put(title, match);
+        }
+        return match;
+    }
+
+    /**
+     * @return true if resolve needs a database connection
+     */
+    public boolean needsConnection() {
+        return arkIndex == null;
+    }
+}
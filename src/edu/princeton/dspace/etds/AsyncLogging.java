@@ -0,0 +1,187 @@
+package edu.princeton.dspace.etds;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.AsyncAppender;
+import org.apache.log4j.Logger;
+
+/**
+ * Moves the writing of log and console lines off the threads processing records.  The appenders of the
+ * root logger are wrapped in a log4j AsyncAppender, and lines for the console are queued in a bounded
+ * buffer drained by a single writer thread, which flushes once the buffer is empty rather than after
+ * every line.
+ *
+ * Both buffers block when full, so no line is lost.  Until start() is called, console lines are printed
+ * directly.
+ */
+public class AsyncLogging {
+
+    // Number of events or lines held before the logging threads block
+    static final int BUFFER_SIZE = 8192;
+
+    /**
+     * A console line
+     */
+    private static class Line {
+        final boolean err;
+        final String text;
+
+        Line(boolean err, String text) {
+            this.err = err;
+            this.text = text;
+        }
+    }
+
+    private static final Line STOP = new Line(false, null);
+
+    private static volatile BlockingQueue<Line> lines = null;
+    private static Thread writerThread = null;
+    private static AsyncAppender appender = null;
+
+    /**
+     * Start writing log and console lines asynchronously
+     */
+    public static synchronized void start() {
+        if (writerThread != null) {
+            return;
+        }
+
+        Logger root = Logger.getRootLogger();
+        List<Appender> appenders = new ArrayList<Appender>();
+        Enumeration<?> e = root.getAllAppenders();
+        while (e.hasMoreElements()) {
+            appenders.add((Appender) e.nextElement());
+        }
+        if (!appenders.isEmpty()) {
+            appender = new AsyncAppender();
+            appender.setName("async");
+            appender.setBufferSize(BUFFER_SIZE);
+            appender.setBlocking(true);
+            appender.setLocationInfo(false);
+            for (Appender a : appenders) {
+                appender.addAppender(a);
+            }
+            root.removeAllAppenders();
+            root.addAppender(appender);
+        }
+
+        final BlockingQueue<Line> queue = new ArrayBlockingQueue<Line>(BUFFER_SIZE);
+        final PrintStream out = System.out;
+        final PrintStream err = System.err;
+        writerThread = new Thread("console-writer") {
+            public void run() {
+                drain(queue, out, err);
+            }
+        };
+        writerThread.setDaemon(true);
+        writerThread.start();
+        lines = queue;
+    }
+
+    /**
+     * Write the lines still buffered and stop the writer thread.  The log4j appenders are closed, so this
+     * must be the last thing the program logs.
+     */
+    public static synchronized void stop() {
+        if (writerThread == null) {
+            return;
+        }
+        BlockingQueue<Line> queue = lines;
+        lines = null;
+        try {
+            queue.put(STOP);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+
+        if (appender != null) {
+            // closing the AsyncAppender dispatches the events it still holds
+            appender.close();
+            appender = null;
+        }
+    }
+
+    /**
+     * Print a line on standard output
+     */
+    public static void println(String s) {
+        print(false, s);
+    }
+
+    /**
+     * Print a line on standard error
+     */
+    public static void printlnErr(String s) {
+        print(true, s);
+    }
+
+    private static void print(boolean err, String s) {
+        BlockingQueue<Line> queue = lines;
+        if (queue != null) {
+            try {
+                queue.put(new Line(err, s));
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (err) {
+            System.err.println(s);
+        } else {
+            System.out.println(s);
+        }
+    }
+
+    private static void drain(BlockingQueue<Line> queue, PrintStream out, PrintStream err) {
+        Writer outWriter = new BufferedWriter(new OutputStreamWriter(out), 65536);
+        Writer errWriter = new BufferedWriter(new OutputStreamWriter(err), 8192);
+        String newline = System.getProperty("line.separator");
+        List<Line> batch = new ArrayList<Line>(BUFFER_SIZE);
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                for (Line line : batch) {
+                    if (line == STOP) {
+                        return;
+                    }
+                    if (line.err) {
+                        // keep standard output ahead of errors printed after it
+                        outWriter.flush();
+                        errWriter.write(line.text);
+                        errWriter.write(newline);
+                        errWriter.flush();
+                    } else {
+                        outWriter.write(line.text);
+                        outWriter.write(newline);
+                    }
+                }
+                batch.clear();
+                outWriter.flush();
+            }
+        } catch (InterruptedException e) {
+            // give up on the lines not yet written
+        } catch (IOException e) {
+            err.println("Cannot write to the console: " + e);
+        } finally {
+            try {
+                outWriter.flush();
+                errWriter.flush();
+            } catch (IOException e) {
+                // nowhere left to report it
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package edu.princeton.dspace.etds;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Builds the zip files of batches kept in the holding folder.  Entries are named relative to the parent of
+ * the batch folder, so an archive unpacks into a folder named after the batch; files which are already
+ * compressed, such as PDFs and media, are copied into uncompressed deflate blocks rather than deflated
+ * again.  The archives of different batches are built on several threads, and the throughput of each run is
+ * logged.
+ */
+public class BatchArchiver {
+
+    static Logger logger = Logger.getLogger(BatchArchiver.class);
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // extensions of files which deflating would not make smaller
+    private static final Set<String> COMPRESSED = new HashSet<String>(Arrays.asList(
+            "pdf", "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jar",
+            "jpg", "jpeg", "png", "gif", "jp2", "webp",
+            "mp3", "m4a", "aac", "ogg", "flac", "mp4", "m4v", "mov", "avi", "mkv", "wmv", "webm",
+            "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub"));
+
+    /**
+     * A batch folder and the zip file to build from it
+     */
+    private static class Job {
+        final File folder;
+        final File zip;
+
+        Job(File folder, File zip) {
+            this.folder = folder;
+            this.zip = zip;
+        }
+    }
+
+    private final int threads;
+    private final List<Job> jobs = new ArrayList<Job>();
+
+    /**
+     * @param threads number of archives built at once
+     */
+    public BatchArchiver(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("number of threads must be positive: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Archive folder into zip when run() is called
+     */
+    public void add(File folder, File zip) {
+        jobs.add(new Job(folder, zip));
+    }
+
+    /**
+     * Build the archives added so far; an archive which fails is logged and removed
+     *
+     * @return the number of archives which failed
+     */
+    public int run() throws InterruptedException {
+        if (jobs.isEmpty()) {
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+        int count = jobs.size();
+        int poolSize = Math.min(threads, count);
+        ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+        int failed = 0;
+        long bytesIn = 0;
+        long bytesOut = 0;
+        try {
+            List<Future<long[]>> results = new ArrayList<Future<long[]>>(jobs.size());
+            for (final Job job : jobs) {
+                results.add(pool.submit(new Callable<long[]>() {
+                    public long[] call() throws IOException {
+                        return archive(job.folder, job.zip);
+                    }
+                }));
+            }
+            for (int i = 0; i < jobs.size(); i++) {
+                Job job = jobs.get(i);
+                try {
+                    long[] sizes = results.get(i).get();
+                    bytesIn += sizes[0];
+                    bytesOut += sizes[1];
+                } catch (ExecutionException e) {
+                    logger.error("Error creating zip file " + job.zip.getPath(), e.getCause());
+                    if (job.zip.exists() && !job.zip.delete()) {
+                        logger.warn("warning; cannot delete " + job.zip.getPath());
+                    }
+                    failed++;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            jobs.clear();
+        }
+        long ms = Math.max(1, System.currentTimeMillis() - start);
+        logger.info(String.format(Locale.ENGLISH,
+                "Archived %d batches on %d threads: %.1f MB read, %.1f MB written in %.1f s (%.1f MB/s)",
+                count - failed, poolSize, bytesIn / 1e6, bytesOut / 1e6, ms / 1000.0, bytesIn / 1e3 / ms));
+        return failed;
+    }
+
+    /**
+     * Build zip from the files in folder
+     *
+     * @return the number of bytes archived and the size of the zip file
+     */
+    static long[] archive(File folder, File zip) throws IOException {
+        long start = System.currentTimeMillis();
+        long[] bytesIn = {0};
+        ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zip), BUFFER_SIZE));
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            addDir(folder, folder.getName() + "/", out, buffer, bytesIn);
+        } finally {
+            out.close();
+        }
+        logger.info("Created " + zip.getName() + " (" + bytesIn[0] + " bytes) in " +
+                (System.currentTimeMillis() - start) + " ms");
+        return new long[]{bytesIn[0], zip.length()};
+    }
+
+    private static void addDir(File dir, String prefix, ZipOutputStream out, byte[] buffer, long[] bytesIn)
+            throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + dir.getPath());
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = prefix + file.getName();
+            if (file.isDirectory()) {
+                addDir(file, name + "/", out, buffer, bytesIn);
+                continue;
+            }
+            ZipEntry entry = new ZipEntry(name);
+            entry.setTime(file.lastModified());
+            // a STORED entry would need its CRC, and so a second read of the file, before its data
+            out.setLevel(isCompressed(file.getName()) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+            out.putNextEntry(entry);
+            InputStream in = new FileInputStream(file);
+            try {
+                bytesIn[0] += copy(in, out, buffer);
+            } finally {
+                in.close();
+            }
+            out.closeEntry();
+        }
+    }
+
+    static boolean isCompressed(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 && COMPRESSED.contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    private static long copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        long total = 0;
+        int len;
+        while ((len = in.read(buffer)) > 0) {
+            out.write(buffer, 0, len);
+            total += len;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,322 @@
+package edu.princeton.dspace.etds;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Unzips the zip files delivered to the incoming folders of the drop box.  A zip whose entries all sit in
+ * folders holds one or more batches and is extracted into the incoming folder itself; any other zip holds
+ * the files of a single batch and is extracted into a new folder named after it.
+ *
+ * The central directory of each zip is read once, and every entry name is checked before anything is
+ * written: a zip with an entry that would land outside its target folder is refused as a whole.  Entries are
+ * then extracted on several threads through large direct buffers, and several zips are handled at once.
+ */
+public class BatchExtractor {
+
+    static Logger logger = Logger.getLogger(BatchExtractor.class);
+
+    private static final int BUFFER_SIZE = 1 << 18;
+
+    private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>() {
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    private final int threads;
+    // the folders the last zips were unpacked into
+    private final List<File> unpacked = Collections.synchronizedList(new ArrayList<File>());
+
+    /**
+     * @param threads number of zips, and of entries of each zip, extracted at once
+     */
+    public BatchExtractor(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("number of threads must be positive: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @return the zip files in the given folders
+     */
+    public static List<File> findZips(File... folders) {
+        List<File> zips = new ArrayList<File>();
+        for (File folder : folders) {
+            File[] files = folder.listFiles();
+            if (files == null) {
+                logger.error("Cannot list " + folder.getPath());
+                continue;
+            }
+            for (File x : files) {
+                if (x.isFile() && x.getName().toLowerCase(Locale.ENGLISH).endsWith(".zip")) {
+                    zips.add(x);
+                }
+            }
+        }
+        return zips;
+    }
+
+    /**
+     * Unzip the given zip files, each next to it, and delete them.  A zip which cannot be unzipped is logged
+     * and left where it is.
+     *
+     * @return the number of zips which could not be unzipped
+     */
+    public int extract(List<File> zips) throws InterruptedException {
+        unpacked.clear();
+        if (zips.isEmpty()) {
+            return 0;
+        }
+
+        long start = System.currentTimeMillis();
+        // zips wait on their entries, so the two never share a pool
+        ExecutorService zipPool = Executors.newFixedThreadPool(Math.min(threads, zips.size()));
+        final ExecutorService entryPool = Executors.newFixedThreadPool(threads);
+        int failed = 0;
+        long bytes = 0;
+        try {
+            List<Future<Long>> results = new ArrayList<Future<Long>>(zips.size());
+            for (final File zip : zips) {
+                results.add(zipPool.submit(new Callable<Long>() {
+                    public Long call() throws IOException, InterruptedException {
+                        return extract(zip, entryPool);
+                    }
+                }));
+            }
+            for (int i = 0; i < zips.size(); i++) {
+                try {
+                    bytes += results.get(i).get();
+                } catch (ExecutionException e) {
+                    logger.error("Error attempting to unzip file " + zips.get(i).getName(), e.getCause());
+                    failed++;
+                }
+            }
+        } finally {
+            zipPool.shutdownNow();
+            entryPool.shutdownNow();
+        }
+        long ms = Math.max(1, System.currentTimeMillis() - start);
+        logger.info(String.format(Locale.ENGLISH, "Unzipped %d files on %d threads: %.1f MB in %.1f s (%.1f MB/s)",
+                zips.size() - failed, threads, bytes / 1e6, ms / 1000.0, bytes / 1e3 / ms));
+        return failed;
+    }
+
+    /**
+     * @return the folders of batches unpacked by the last call to extract()
+     */
+    public List<File> getUnpacked() {
+        return new ArrayList<File>(unpacked);
+    }
+
+    /**
+     * Unzip one file next to it and delete it
+     *
+     * @return the number of bytes extracted
+     */
+    private long extract(File x, ExecutorService entryPool) throws IOException, InterruptedException {
+        logger.info("Zip file found: " + x.getName());
+        File incomingFolder = x.getParentFile();
+        final ZipFile zipFile = new ZipFile(x, ZipFile.OPEN_READ);
+        long bytes;
+        try {
+            //are there ONLY directories in the zip file?
+            boolean onlydirectories = true;
+            List<ZipEntry> entries = new ArrayList<ZipEntry>();
+            Set<String> folders = new LinkedHashSet<String>();
+            Enumeration<? extends ZipEntry> e = zipFile.entries();
+            while (e.hasMoreElements()) {
+                ZipEntry entry = e.nextElement();
+                int slash = entry.getName().indexOf('/');
+                if (slash == -1) {
+                    onlydirectories = false;
+                } else {
+                    folders.add(entry.getName().substring(0, slash));
+                }
+                entries.add(entry);
+            }
+
+            File target;
+            // the batch folders of a grouped zip which are already there are left alone if it fails
+            Set<String> existing = new HashSet<String>();
+            if (onlydirectories) {
+                //file is one or more batches grouped together; unzip them all into drop box folder directly
+                target = incomingFolder;
+                for (String folder : folders) {
+                    if (new File(incomingFolder, folder).exists()) {
+                        existing.add(folder);
+                    }
+                }
+                logger.info("Unzipping " + x.getName() + " into " + target.getPath());
+            } else {
+                //assume that file is a group of files zipped directly, without a parent folder
+                target = new File(incomingFolder, x.getName().substring(0, x.getName().length() - 4));
+                if (target.exists()) {
+                    throw new IOException("Unable to unzip " + x.getName() +
+                            " since a folder with that name already exists");
+                }
+                logger.info("File has no directory structure; unzipping " + x.getName() +
+                        " into newly created folder " + target.getPath());
+            }
+
+            try {
+                bytes = extract(zipFile, resolve(entries, target.toPath()), entryPool);
+            } catch (IOException err) {
+                if (!onlydirectories) {
+                    FileTrees.delete(target.toPath());
+                } else {
+                    for (String folder : folders) {
+                        if (!existing.contains(folder) && isChild(incomingFolder, folder)) {
+                            FileTrees.delete(new File(incomingFolder, folder).toPath());
+                        }
+                    }
+                }
+                throw err;
+            }
+            if (onlydirectories) {
+                for (String folder : folders) {
+                    unpacked.add(new File(incomingFolder, folder));
+                }
+            } else {
+                unpacked.add(target);
+            }
+        } finally {
+            zipFile.close();
+        }
+
+        logger.info("Deleting " + x.getName());
+        if (!x.delete()) {
+            logger.warn("warning; cannot delete " + x.getPath());
+        }
+        return bytes;
+    }
+
+    /**
+     * @return whether name is a folder right inside dir, and not "", "." or ".." of a refused entry
+     */
+    private static boolean isChild(File dir, String name) {
+        Path parent = dir.toPath().toAbsolutePath().normalize();
+        return parent.equals(parent.resolve(name).normalize().getParent());
+    }
+
+    /**
+     * Work out where each entry goes, and create the folders they go in
+     *
+     * @return the files to extract and their destinations, in the order of the central directory
+     * @throws IOException if an entry would be written outside target
+     */
+    static Map<ZipEntry, Path> resolve(List<ZipEntry> entries, Path target) throws IOException {
+        Path root = target.toAbsolutePath().normalize();
+        Map<ZipEntry, Path> files = new LinkedHashMap<ZipEntry, Path>();
+        List<Path> dirs = new ArrayList<Path>();
+        for (ZipEntry entry : entries) {
+            String name = entry.getName().replace('\\', '/');
+            Path dest = root.resolve(name).normalize();
+            if (name.startsWith("/") || !dest.startsWith(root) || dest.equals(root) && !entry.isDirectory()) {
+                throw new IOException("Entry " + entry.getName() + " is outside of " + target);
+            }
+            if (entry.isDirectory()) {
+                dirs.add(dest);
+            } else {
+                dirs.add(dest.getParent());
+                files.put(entry, dest);
+            }
+        }
+        for (Path dir : dirs) {
+            Files.createDirectories(dir);
+        }
+        return files;
+    }
+
+    private static long extract(final ZipFile zipFile, Map<ZipEntry, Path> files, ExecutorService entryPool)
+            throws IOException, InterruptedException {
+        List<Future<Long>> copies = new ArrayList<Future<Long>>(files.size());
+        for (final Map.Entry<ZipEntry, Path> file : files.entrySet()) {
+            copies.add(entryPool.submit(new Callable<Long>() {
+                public Long call() throws IOException {
+                    return extract(zipFile, file.getKey(), file.getValue());
+                }
+            }));
+        }
+        long bytes = 0;
+        IOException error = null;
+        // wait for every entry, so none is still being written once this returns
+        for (Future<Long> copy : copies) {
+            try {
+                bytes += copy.get();
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    error = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause()
+                            : new IOException("Error unzipping " + zipFile.getName(), e.getCause());
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return bytes;
+    }
+
+    private static long extract(ZipFile zipFile, ZipEntry entry, Path dest) throws IOException {
+        ByteBuffer buffer = BUFFERS.get();
+        buffer.clear();
+        long total = 0;
+        InputStream is = zipFile.getInputStream(entry);
+        try {
+            ReadableByteChannel in = Channels.newChannel(is);
+            FileChannel out = FileChannel.open(dest, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                boolean eof = false;
+                while (!eof) {
+                    // the stream hands over a few KB at a time; write only once the buffer is full
+                    while (buffer.hasRemaining()) {
+                        if (in.read(buffer) < 0) {
+                            eof = true;
+                            break;
+                        }
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        total += out.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            is.close();
+        }
+        return total;
+    }
+}
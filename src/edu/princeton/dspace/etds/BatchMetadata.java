@@ -0,0 +1,131 @@
+package edu.princeton.dspace.etds;
+
+import java.io.File;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.log4j.Logger;
+
+/**
+ * What ETDImport needs to know about a batch, read in one pass over its ProQuest XML file: the department,
+ * the embargo code and end date, the title and the author.
+ */
+public class BatchMetadata {
+
+    static Logger logger = Logger.getLogger(BatchMetadata.class);
+
+    static final String DEPARTMENT = "DISS_submission/DISS_description/DISS_institution/DISS_inst_contact";
+    static final String EMBARGO_CODE = "DISS_submission/@embargo_code";
+    static final String EMBARGO_END = "DISS_submission/DISS_restriction/DISS_sales_restriction/@remove";
+    static final String TITLE = "DISS_submission/DISS_description/DISS_title";
+    static final String SURNAME = "DISS_submission/DISS_authorship/DISS_author/DISS_name/DISS_surname";
+    static final String FNAME = "DISS_submission/DISS_authorship/DISS_author/DISS_name/DISS_fname";
+
+    private static final DissFieldExtractor extractor =
+            new DissFieldExtractor(DEPARTMENT, EMBARGO_CODE, EMBARGO_END, TITLE, SURNAME, FNAME);
+
+    private final File xmlFile;
+
+    private final String departmentName;
+    private final String embargoCode;
+    private final Date embargoEnd;
+    private final String title;
+    private final String author;
+
+    private BatchMetadata(File xmlFile, Map<String, String> fields) {
+        this.xmlFile = xmlFile;
+        this.departmentName = fields.get(DEPARTMENT);
+        this.embargoCode = fields.get(EMBARGO_CODE);
+        this.embargoEnd = parseEmbargoEnd(fields.get(EMBARGO_END));
+        // only shown in the report, so spacing around them is dropped
+        this.title = trim(fields.get(TITLE));
+        this.author = author(trim(fields.get(SURNAME)), trim(fields.get(FNAME)));
+    }
+
+    /**
+     * Read the ProQuest XML file of a batch
+     */
+    public static BatchMetadata parse(File xmlFile) throws Exception {
+        return new BatchMetadata(xmlFile, extractor.extract(xmlFile));
+    }
+
+    /**
+     * @return the XML file as a source for an XSL transform
+     */
+    public Source getSource() {
+        return new StreamSource(xmlFile);
+    }
+
+    public File getXmlFile() {
+        return xmlFile;
+    }
+
+    /**
+     * @return the department name used by ProQuest, or null if there is none
+     */
+    public String getDepartmentName() {
+        return departmentName;
+    }
+
+    /**
+     * @return the embargo code of the submission, or null if there is none
+     */
+    public String getEmbargoCode() {
+        return embargoCode;
+    }
+
+    /**
+     * @return the date the ProQuest sales restriction is removed, or null if there is none
+     */
+    public Date getEmbargoEnd() {
+        return embargoEnd;
+    }
+
+    /**
+     * @return the title of the thesis, or null if there is none
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return the first author as "surname, first name", or null if there is none
+     */
+    public String getAuthor() {
+        return author;
+    }
+
+    private Date parseEmbargoEnd(String endDateString) {
+        if (endDateString == null || endDateString.equals("")) {
+            return null;
+        }
+        logger.info("Embargo endDate " + endDateString);
+        try {
+            DateFormat format = new SimpleDateFormat("MM/dd/yyyy", Locale.ENGLISH);
+            Date endDate = format.parse(endDateString);
+            logger.info("Embargo endDate (parsed)" + endDate);
+            return endDate;
+        } catch (ParseException e) {
+            logger.error("Can't parse embargo endDate " + endDateString, e);
+            return null;
+        }
+    }
+
+    private static String trim(String s) {
+        return s == null ? null : s.trim();
+    }
+
+    private static String author(String surname, String fname) {
+        if (surname == null) {
+            return fname;
+        }
+        return fname == null ? surname : surname + ", " + fname;
+    }
+}
@@ -0,0 +1,346 @@
+package edu.princeton.dspace.etds;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Prepares batches in the staging directory for ItemImport: copies the schema files, reads the ProQuest XML,
+ * and writes dublin_core.xml, metadata_pu.xml, the bitstream, the author list and the contents file.
+ * Batches are independent directories, so several are prepared at once on a fixed number of threads; the
+ * results are handed back in the order of the batches, and rejecting a batch is left to the caller.
+ */
+public class BatchPreparer {
+
+    static Logger logger = Logger.getLogger(BatchPreparer.class);
+
+    static final String DUBLIN_CORE_FILE = "dublin_core.xml";
+
+    private static final String PROQUEST_EMBARGO_CODE = "4";
+
+    private final File dropBoxFolder;
+    private final String schemaLocation;
+    private final String metadataTransformXSL;
+    private final String filelistTransformXSL;
+    private final String bitstreamTransformXSL;
+    private final String bitstreamExtension;
+    private final String authorlistTransformXSL;
+    private final String projectgrantnumber;
+    private final int workers;
+
+    /**
+     * @param dropBoxFolder relative paths in the configuration are resolved against it
+     * @param workers       number of batches prepared at once
+     */
+    public BatchPreparer(Configuration config, File dropBoxFolder, int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("number of workers must be positive: " + workers);
+        }
+        this.dropBoxFolder = dropBoxFolder;
+        this.schemaLocation = config.getSchemaLocation();
+        this.metadataTransformXSL = config.getMetadataTransformXSL();
+        this.filelistTransformXSL = config.getFilelistTransformXSL();
+        this.bitstreamTransformXSL = config.getBitstreamTransformXSL();
+        this.bitstreamExtension = config.getBitstreamExtension();
+        this.authorlistTransformXSL = config.getAuthorlistTransformXSL();
+        this.projectgrantnumber = config.getProjectgrantnumber();
+        this.workers = workers;
+    }
+
+    /**
+     * Prepare the given batches
+     *
+     * @param authorlist whether to write the author list; existing items do not need one
+     * @return the metadata of each batch, in the order of the batches, or null for a batch which could not be
+     * prepared and must be rejected
+     */
+    public List<BatchMetadata> prepare(List<File> batches, final boolean authorlist) throws InterruptedException {
+        List<BatchMetadata> prepared = new ArrayList<BatchMetadata>(batches.size());
+        if (batches.isEmpty()) {
+            return prepared;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(workers, batches.size()));
+        try {
+            List<Future<BatchMetadata>> results = new ArrayList<Future<BatchMetadata>>(batches.size());
+            for (final File batch : batches) {
+                results.add(pool.submit(new Callable<BatchMetadata>() {
+                    public BatchMetadata call() throws Exception {
+                        return prepare(batch, authorlist);
+                    }
+                }));
+            }
+            for (int i = 0; i < batches.size(); i++) {
+                try {
+                    prepared.add(results.get(i).get());
+                } catch (ExecutionException e) {
+                    logger.error("ERROR preparing batch " + batches.get(i).getName() + ": " +
+                            e.getCause().getMessage(), e.getCause());
+                    prepared.add(null);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return prepared;
+    }
+
+    /**
+     * Prepare one batch
+     *
+     * @return the metadata of the batch
+     * @throws Exception describing why the batch must be rejected
+     */
+    BatchMetadata prepare(File batch, boolean authorlist) throws Exception {
+        File xmlFile = ETDImport.findXMLFileFor(batch);
+        if (xmlFile == null) {
+            throw new Exception("No xml file in batch " + batch.getName());
+        }
+        logger.info("Base batch XML file found: " + xmlFile.getName());
+
+        //move schema files
+        if (!schemaLocation.equals("")) {
+            logger.info("Moving schema files");
+            try {
+                moveSchema(batch);
+            } catch (Exception err) {
+                throw new Exception("Schema files cannot be read", err);
+            }
+        }
+        //read the batch XML file, after the schema files it may refer to are in place
+        BatchMetadata metadata;
+        try {
+            metadata = BatchMetadata.parse(xmlFile);
+        } catch (Exception err) {
+            throw new Exception("Cannot parse " + xmlFile.getName(), err);
+        }
+        //metadata transformer to create dublin_core.xml file
+        if (!metadataTransformXSL.equals("")) {
+            try {
+                createDCFile(metadata);
+            } catch (Exception err) {
+                throw new Exception("generating dublin core.xml", err);
+            }
+        } else {
+            if (!(xmlFile.getName().equals(DUBLIN_CORE_FILE))) {
+                xmlFile.renameTo(new File(xmlFile.getParent() + File.separator + DUBLIN_CORE_FILE));
+            }
+            logger.info("Skipping metadata transform - XML is already in DC format");
+        }
+
+        // Create the metadata_pu.xml file that holds the project grant number
+        createMetaDataPUFile(batch, metadata);
+
+        //next generate bitstream if neccesary
+        if (!(bitstreamTransformXSL.equals(""))) {
+            logger.info("Transforming " + xmlFile.getName() + " into bitstream file using " + bitstreamTransformXSL);
+            try {
+                createBitstream(metadata);
+            } catch (Exception err) {
+                throw new Exception("generating bitstream", err);
+            }
+        }
+        //next generate authorlist if neccesary
+        if (authorlist && !(authorlistTransformXSL.equals(""))) {
+            logger.info("Transforming " + xmlFile.getName() + " into authorlist file using " + authorlistTransformXSL);
+            try {
+                createAuthorlist(metadata);
+            } catch (Exception err) {
+                throw new Exception("generating authorlist", err);
+            }
+        }
+        //next, generate 'contents' file
+        logger.info("Generating contents file");
+        createContentsFile(batch, metadata);
+
+        return metadata;
+    }
+
+    private void createContentsFile(File batch, BatchMetadata metadata) throws Exception {
+        File xmlFile = metadata.getXmlFile();
+        File contentsFile = new File(xmlFile.getParent() + File.separator + "contents");
+        if (contentsFile.exists()) {
+            //assumes that if contents file is present it's already correct
+            return;
+        }
+        try {
+            contentsFile.createNewFile();
+        } catch (Exception err) {
+            throw new Exception("generating contents file: " + contentsFile.getPath(), err);
+        }
+        if (filelistTransformXSL.equals("")) {
+            //no transform specified, so just list everything in the folder except the xml, dtd, and ent files, and the contents file itself
+            logger.info("No file transform specified; reading folder contents");
+            File[] batchFiles = batch.listFiles();
+            boolean error = false;
+            BufferedWriter writer = null;
+            try {
+                writer = new BufferedWriter(new FileWriter(contentsFile));
+                for (File file : batchFiles) {
+                    if (!((file.getName().startsWith(".")) ||
+                            (file.getName().toLowerCase().endsWith("xml")) ||
+                            (file.getName().toLowerCase().endsWith("dtd")) ||
+                            (file.getName().toLowerCase().endsWith("ent")) ||
+                            (file.getName().toLowerCase().equals("contents")))) {
+                        if (file.isDirectory()) {
+                            //add file to contents file
+                            //TODO currently can only go in one level!
+                            for (File subfile : file.listFiles()) {
+                                if (subfile.isDirectory()) {
+                                    error = true;
+                                } else {
+                                    writer.write(file.getName() + File.separator + subfile.getName());
+                                    writer.newLine();
+                                }
+                            }
+                        } else {
+                            //add file to contents file
+                            writer.write(file.getName());
+                            writer.newLine();
+                        }
+                    }
+                }
+            } catch (Exception err) {
+                throw new Exception("writing content file", err);
+            } finally {
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException er) {
+                    }
+                }
+            }
+            if (error) {
+                throw new Exception("batch contains nonempty subfolders");
+            }
+        } else {
+            logger.info("generating contents file using XSL");
+            //do the transformation to generate the contents list
+            File xslFile;
+            try {
+                xslFile = ETDImport.openFile(filelistTransformXSL, dropBoxFolder.getPath());
+            } catch (Exception err) {
+                throw new Exception("XSL file cannot be read: " + filelistTransformXSL, err);
+            }
+            if (!xslFile.isFile()) {
+                throw new Exception("not a file: " + xslFile.getPath());
+            }
+            logger.info("Transforming " + xmlFile.getName() + " into contents file using " + xslFile.getName());
+            //run the contents transformation
+            try {
+                doTransform(xslFile, metadata.getSource(), xmlFile.getParent() + File.separator + "contents");
+            } catch (Exception err) {
+                throw new Exception("generating transformation for batch " + batch.getName(), err);
+            }
+        }
+    }
+
+    private void createAuthorlist(BatchMetadata metadata) throws Exception {
+        File xmlFile = metadata.getXmlFile();
+        File xslFile = ETDImport.openFile(authorlistTransformXSL, dropBoxFolder.getPath());
+        if (!xslFile.isFile()) {
+            throw new Exception("nota file: " + authorlistTransformXSL);
+        }
+        //run the authorlist transformation
+        doTransform(xslFile, metadata.getSource(), xmlFile.getParent() + File.separator + "aulist.xml");
+    }
+
+    private void createBitstream(BatchMetadata metadata) throws Exception {
+        File xmlFile = metadata.getXmlFile();
+        File xslFile = ETDImport.openFile(bitstreamTransformXSL, dropBoxFolder.getPath());
+        if (!xslFile.isFile()) {
+            throw new Exception("nota file: " + bitstreamTransformXSL);
+        }
+        //run the bitstream transformation
+        doTransform(xslFile, metadata.getSource(), xmlFile.getParent() + File.separator + xmlFile.getName().substring(0, xmlFile.getName().length() - 4) + "." + bitstreamExtension);
+    }
+
+    private void createDCFile(BatchMetadata metadata) throws Exception {
+        File xmlFile = metadata.getXmlFile();
+        if (xmlFile.getName().equals(DUBLIN_CORE_FILE)) {
+            throw new Exception("can't handle " + DUBLIN_CORE_FILE);
+        }
+        File xslFile = ETDImport.openFile(metadataTransformXSL, dropBoxFolder.getPath());
+        if (!xmlFile.isFile()) {
+            throw new Exception(metadataTransformXSL + " not a file");
+        }
+        //run the metadata transformation
+        doTransform(xslFile, metadata.getSource(), xmlFile.getParent() + File.separator + DUBLIN_CORE_FILE);
+    }
+
+    private void moveSchema(File batch) throws Exception {
+        File schemaFolder = ETDImport.openFile(schemaLocation, dropBoxFolder.getPath());
+        if (!schemaFolder.isDirectory()) {
+            throw new Exception(schemaLocation + " not a directory");
+        }
+        FileTrees.copyContents(schemaFolder, batch);
+    }
+
+    private static void doTransform(File xslFile, Source input, String outputFile) throws Exception {
+        // the stylesheet is compiled once per run and shared by all batches
+        Transformer transformer = StylesheetCache.newTransformer(xslFile);
+        FileOutputStream of = new FileOutputStream(outputFile);
+        try {
+            transformer.transform(input, new javax.xml.transform.stream.StreamResult(of));
+        } finally {
+            of.close();
+        }
+    }
+
+    /**
+     * Create the metadata_pu.xml file that contains the project grant number to charge
+     *
+     * @param batch    The directory in which the file should be written
+     * @param metadata The parsed XML file of the batch
+     */
+    private void createMetaDataPUFile(File batch, BatchMetadata metadata) {
+        // Define the embargo lift dates if applicable
+        String embargo_fields = "";
+        String embargo_code = metadata.getEmbargoCode();
+        if (embargo_code != null) {
+            if (embargo_code.equals(PROQUEST_EMBARGO_CODE)) {
+                logger.debug("This item will be placed under embargo, embargo_code=" + embargo_code);
+                // lift embargo on date given in xmlfile
+                Date endDate = metadata.getEmbargoEnd();
+                SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+                String todaystr = sdf.format(endDate);
+                embargo_fields = "     <dcvalue element=\"embargo\" qualifier=\"terms\">" + todaystr + "</dcvalue>\n" +
+                        "     <dcvalue element=\"embargo\" qualifier=\"lift\">" + todaystr + "</dcvalue>\n";
+            } else if (!embargo_code.equals("0")) {
+                logger.error("Unexpected embargo code found: embargo_code = " + embargo_code);
+            }
+        }
+        String contents = "<?xml version=\"1.0\" encoding=\"utf-8\" standalone=\"no\"?>\n" +
+                "<dublin_core schema=\"pu\">\n" +
+                "     <dcvalue element=\"projectgrantnumber\" qualifier=\"none\">" + projectgrantnumber + "</dcvalue>\n" +
+                embargo_fields +
+                "</dublin_core>";
+
+        String filename = batch.getPath() + File.separator + "metadata_pu.xml";
+
+        try {
+            FileWriter fstream = new FileWriter(filename);
+            BufferedWriter out = new BufferedWriter(fstream);
+            out.write(contents);
+            out.close();
+        } catch (Exception e) {
+            logger.error("Problems creating file: " + filename, e);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package edu.princeton.dspace.etds;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * How far ETDMARCProcessor got through its input: the offset just past the last record written, the
+ * length of the output holding that record, the number of records and ARKs so far, and the counts of the
+ * RunReport.  A checkpoint is kept next to the output file, in outputfile.ckpt, and replaced atomically.
+ */
+public class Checkpoint {
+
+    private final String input;
+    private final long inputOffset;
+    private final long outputLength;
+    private final int recordCount;
+    private final int arksFound;
+    private final Properties report;
+
+    /**
+     * @param report  the state of the RunReport, as given by RunReport.getState(), or null
+     */
+    public Checkpoint(String input, long inputOffset, long outputLength, int recordCount, int arksFound,
+                      Properties report) {
+        this.input = input;
+        this.inputOffset = inputOffset;
+        this.outputLength = outputLength;
+        this.recordCount = recordCount;
+        this.arksFound = arksFound;
+        this.report = report;
+    }
+
+    /**
+     * @return the checkpoint file kept for the given output file
+     */
+    public static File fileFor(String outputfile) {
+        return new File(outputfile + ".ckpt");
+    }
+
+    /**
+     * @return the checkpoint in file, or null if there is none
+     */
+    public static Checkpoint read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        // a checkpoint written before reports were saved with it has none
+        Properties report = null;
+        for (String key : props.stringPropertyNames()) {
+            if (RunReport.isState(key)) {
+                if (report == null) {
+                    report = new Properties();
+                }
+                report.setProperty(key, props.getProperty(key));
+            }
+        }
+        try {
+            return new Checkpoint(props.getProperty("input"),
+                    Long.parseLong(props.getProperty("input_offset")),
+                    Long.parseLong(props.getProperty("output_length")),
+                    Integer.parseInt(props.getProperty("records")),
+                    Integer.parseInt(props.getProperty("arks_found")),
+                    report);
+        } catch (RuntimeException e) {
+            throw new IOException(file.getPath() + " is not a valid checkpoint", e);
+        }
+    }
+
+    /**
+     * Replace the checkpoint in file with this one
+     */
+    public void write(File file) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("input", input);
+        props.setProperty("input_offset", Long.toString(inputOffset));
+        props.setProperty("output_length", Long.toString(outputLength));
+        props.setProperty("records", Integer.toString(recordCount));
+        props.setProperty("arks_found", Integer.toString(arksFound));
+        if (report != null) {
+            props.putAll(report);
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            props.store(out, "ETDMARCProcessor checkpoint");
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the path of the input file the checkpoint was taken for
+     */
+    public String getInput() {
+        return input;
+    }
+
+    /**
+     * @return the offset in the input just past the last record written
+     */
+    public long getInputOffset() {
+        return inputOffset;
+    }
+
+    /**
+     * @return the length of the output up to and including the last record written
+     */
+    public long getOutputLength() {
+        return outputLength;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    public int getArksFound() {
+        return arksFound;
+    }
+
+    /**
+     * @return the state of the RunReport at the checkpoint, or null if it was not saved
+     */
+    public Properties getReport() {
+        return report;
+    }
+}
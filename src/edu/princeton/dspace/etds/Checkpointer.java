@@ -0,0 +1,103 @@
+package edu.princeton.dspace.etds;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Counts the records written by ETDMARCProcessor and every so many records syncs the output and saves a
+ * Checkpoint, so that a failed run can be resumed from the last checkpoint instead of from the first record.
+ */
+public class Checkpointer {
+
+    static Logger logger = Logger.getLogger(Checkpointer.class);
+
+    private final File file;
+    private final String input;
+    private final FileOutputStream out;
+    private final int interval;
+    private final RunReport report;
+
+    private long inputOffset;
+    private int recordCount;
+    private int arksFound;
+    private int unsaved = 0;
+
+    /**
+     * @param file      the checkpoint file
+     * @param input     path of the input file
+     * @param out       the output file the MarcStreamWriter writes to, unbuffered
+     * @param interval  number of records between checkpoints; 0 to only count records
+     * @param start     the checkpoint the run resumed from, or null
+     * @param report    the report whose counts are saved with each checkpoint, or null
+     */
+    public Checkpointer(File file, String input, FileOutputStream out, int interval, Checkpoint start,
+                        RunReport report) {
+        this.file = file;
+        this.input = input;
+        this.out = out;
+        this.interval = interval;
+        this.report = report;
+        if (start != null) {
+            inputOffset = start.getInputOffset();
+            recordCount = start.getRecordCount();
+            arksFound = start.getArksFound();
+        }
+    }
+
+    /**
+     * Count a record just written
+     *
+     * @param inputOffset  offset in the input just past the record
+     * @param found        whether an ARK was found for the record
+     */
+    public void recordWritten(long inputOffset, boolean found) throws IOException {
+        this.inputOffset = inputOffset;
+        recordCount = recordCount + 1;
+        if (found) {
+            arksFound = arksFound + 1;
+        }
+        unsaved = unsaved + 1;
+        if (interval > 0 && unsaved >= interval) {
+            save();
+        }
+    }
+
+    /**
+     * Sync the output and save a checkpoint after the last record written
+     */
+    public void save() throws IOException {
+        out.flush();
+        out.getFD().sync();
+        new Checkpoint(input, inputOffset, out.getChannel().position(), recordCount, arksFound,
+                report != null ? report.getState() : null).write(file);
+        unsaved = 0;
+        logger.debug("Checkpoint at record " + recordCount + ", input offset " + inputOffset);
+    }
+
+    /**
+     * Remove the checkpoint once the whole input has been processed
+     */
+    public void finish() {
+        if (file.exists() && !file.delete()) {
+            logger.warn("Cannot remove checkpoint " + file.getPath());
+        }
+    }
+
+    /**
+     * @return the number of records written, including those written before the run resumed
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return the number of written records for which an ARK was found, including those written before
+     *         the run resumed
+     */
+    public int getArksFound() {
+        return arksFound;
+    }
+}
@@ -5,6 +5,7 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Vector;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -53,6 +54,10 @@ public class Configuration {
     //  department name used by the Library OPAC
     HashMap<String, String> collectionOPACNameLookup = new HashMap<String, String>();
 
+    // MARC fields removed by the MARC record processor: tag -> text subfield 'a' must start with, or null
+    //  to remove every field with the tag
+    LinkedHashMap<String, String> marcRemoveFields = new LinkedHashMap<String, String>();
+
     public Configuration(String filename, String dspaceHome) {
         logger.info("Initializing from " + dspaceHome + "/config/" + DSPACE_CONFIG_FILE);
         ConfigurationManager.loadConfig(dspaceHome + "/config/" + DSPACE_CONFIG_FILE);
@@ -234,6 +239,16 @@ public class Configuration {
                 logger.warn("no smtpHost specified");
             }
 
+            //MARC fields to remove (optional)
+            NodeList marcRemoveFieldList = doc.getElementsByTagName("marcRemoveField");
+            for (int i = 0; i < marcRemoveFieldList.getLength(); i++) {
+                Element field = (Element) marcRemoveFieldList.item(i);
+                String tag = field.getTextContent().trim();
+                String startsWith = field.hasAttribute("startsWith") ? field.getAttribute("startsWith") : null;
+                marcRemoveFields.put(tag, startsWith);
+            }
+            logger.info("marcRemoveFields: " + marcRemoveFields);
+
             //load collection names, department names, and identifiers defined in config.xml
 
             // Get the list of <collection> elements
@@ -405,5 +420,12 @@ public class Configuration {
         return collectionOPACNameLookup;
     }
 
+    /**
+     * @return the marcRemoveFields, empty if config.xml does not list any
+     */
+    public LinkedHashMap<String, String> getMarcRemoveFields() {
+        return marcRemoveFields;
+    }
+
 
 }
\ No newline at end of file
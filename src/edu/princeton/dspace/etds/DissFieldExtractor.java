@@ -0,0 +1,165 @@
+package edu.princeton.dspace.etds;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads a declared set of fields from a ProQuest DISS_submission file with a StAX reader, without building
+ * a tree.  A path names an element from the root, as in DISS_submission/DISS_description/DISS_title, whose
+ * text is read, or ends in an attribute, as in DISS_submission/@embargo_code.  The text is kept as it
+ * stands, surrounding whitespace included, as getTextContent() gives it.  The first occurrence of each path
+ * is used, and the file is only read until all paths have been found.  Text paths may not be nested in one
+ * another.
+ *
+ * An extractor holds no state between files, so one instance can be shared by several threads.
+ */
+public class DissFieldExtractor {
+
+    private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+    static {
+        factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.TRUE);
+    }
+
+    /**
+     * A declared path, split into the path of its element and the attribute read from it, if any
+     */
+    private static class Field {
+        final String path;
+        final String attribute;
+
+        Field(String path, String attribute) {
+            this.path = path;
+            this.attribute = attribute;
+        }
+    }
+
+    // declared fields, by the path of their element
+    private final Map<String, List<Field>> fields = new HashMap<String, List<Field>>();
+    private final int count;
+
+    /**
+     * @param paths the paths to read
+     */
+    public DissFieldExtractor(String... paths) {
+        for (String path : paths) {
+            int at = path.lastIndexOf("/@");
+            String element = at < 0 ? path : path.substring(0, at);
+            String attribute = at < 0 ? null : path.substring(at + 2);
+            if (element.isEmpty() || element.startsWith("/") || element.endsWith("/") || "".equals(attribute)) {
+                throw new IllegalArgumentException("not a field path: " + path);
+            }
+            List<Field> list = fields.get(element);
+            if (list == null) {
+                list = new ArrayList<Field>(2);
+                fields.put(element, list);
+            }
+            list.add(new Field(path, attribute));
+        }
+        this.count = paths.length;
+    }
+
+    /**
+     * @return the value of each declared path found in the file, by path; paths which are not found are
+     * missing from the map
+     */
+    public Map<String, String> extract(File xmlFile) throws IOException, XMLStreamException {
+        InputStream in = new BufferedInputStream(new FileInputStream(xmlFile));
+        try {
+            XMLStreamReader reader;
+            // the factory is configured once and shared; creating readers is serialized on it
+            synchronized (factory) {
+                reader = factory.createXMLStreamReader(xmlFile.toURI().toString(), in);
+            }
+            try {
+                return extract(reader);
+            } finally {
+                reader.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private Map<String, String> extract(XMLStreamReader reader) throws XMLStreamException {
+        Map<String, String> found = new HashMap<String, String>();
+
+        StringBuilder path = new StringBuilder(128);
+        int[] lengths = new int[32];
+        int depth = 0;
+
+        // the text field being read, and the depth of its element
+        String textField = null;
+        int textDepth = 0;
+        StringBuilder text = new StringBuilder();
+
+        while (found.size() < count && reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    if (depth == lengths.length) {
+                        int[] grown = new int[depth * 2];
+                        System.arraycopy(lengths, 0, grown, 0, depth);
+                        lengths = grown;
+                    }
+                    lengths[depth++] = path.length();
+                    if (path.length() > 0) {
+                        path.append('/');
+                    }
+                    path.append(reader.getLocalName());
+
+                    List<Field> list = fields.get(path.toString());
+                    if (list == null) {
+                        break;
+                    }
+                    for (Field field : list) {
+                        if (found.containsKey(field.path)) {
+                            continue;
+                        }
+                        if (field.attribute != null) {
+                            String value = reader.getAttributeValue(null, field.attribute);
+                            if (value != null) {
+                                found.put(field.path, value);
+                            }
+                        } else if (textField == null) {
+                            textField = field.path;
+                            textDepth = depth;
+                            text.setLength(0);
+                        }
+                    }
+                    break;
+
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (textField != null) {
+                        text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    }
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    if (textField != null && depth == textDepth) {
+                        found.put(textField, text.toString());
+                        textField = null;
+                    }
+                    path.setLength(lengths[--depth]);
+                    break;
+
+                default:
+                    break;
+            }
+        }
+        return found;
+    }
+}
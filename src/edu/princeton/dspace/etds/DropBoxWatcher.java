@@ -0,0 +1,301 @@
+package edu.princeton.dspace.etds;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Watches the incoming folders of the drop box and tells when the uploads in them are complete.
+ *
+ * Every file or folder at the top of a watched folder is an upload.  Its subfolders are watched as well, and
+ * any change under it restarts its quiet period.  Once an upload has not changed for the quiet period, the
+ * number, sizes and modification times of its files are compared with those seen one quiet period earlier,
+ * which catches writes the file system does not report; the upload is ready when they are the same.  Hidden
+ * files, such as the temporary files of rsync, are not uploads.
+ *
+ * An upload which is still in place once it has been processed could not be processed; requeue() watches it
+ * again, and it is tried again after twice as long a quiet period each time, up to MAX_BACKOFF periods.
+ */
+public class DropBoxWatcher {
+
+    static Logger logger = Logger.getLogger(DropBoxWatcher.class);
+
+    // most quiet periods a failed upload waits before it is tried again
+    private static final int MAX_BACKOFF = 64;
+
+    /**
+     * An upload which is not ready yet
+     */
+    private static class Upload {
+        long changed;
+        Long signature;
+        // number of quiet periods to wait, more than one after the upload failed
+        int backoff = 1;
+    }
+
+    private final long quietMillis;
+    private final WatchService watcher;
+    // the folder each key watches, and the upload it belongs to, or null for the incoming folders
+    private final Map<WatchKey, Path> dirs = new HashMap<WatchKey, Path>();
+    private final Map<WatchKey, Path> uploads = new HashMap<WatchKey, Path>();
+    private final Map<Path, Upload> pending = new HashMap<Path, Upload>();
+    // the uploads returned by the last awaitReady()
+    private final Map<Path, Upload> handedOut = new HashMap<Path, Upload>();
+
+    /**
+     * Watch the given folders; what they already hold is treated as just uploaded
+     *
+     * @param quietMillis how long an upload must stay unchanged to be ready
+     */
+    public DropBoxWatcher(List<File> folders, long quietMillis) throws IOException {
+        this.quietMillis = quietMillis;
+        this.watcher = folders.get(0).toPath().getFileSystem().newWatchService();
+        for (File folder : folders) {
+            register(folder.toPath(), null);
+            addAll(folder.toPath());
+        }
+    }
+
+    /**
+     * Wait until at least one upload is ready
+     *
+     * @return the files and folders of the uploads which are ready
+     */
+    public Set<File> awaitReady() throws InterruptedException {
+        handedOut.clear();
+        while (true) {
+            long now = System.currentTimeMillis();
+            Set<File> ready = checkPending(now);
+            if (!ready.isEmpty()) {
+                return ready;
+            }
+            WatchKey key = pending.isEmpty()
+                    ? watcher.take()
+                    : watcher.poll(nextCheck(now), TimeUnit.MILLISECONDS);
+            while (key != null) {
+                handle(key);
+                key = watcher.poll();
+            }
+        }
+    }
+
+    /**
+     * Watch again the uploads returned by the last awaitReady() which are still in place, as processing them
+     * failed
+     */
+    public void requeue() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Path, Upload> e : handedOut.entrySet()) {
+            Path path = e.getKey();
+            Upload u = e.getValue();
+            if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS) || pending.containsKey(path)) {
+                continue;
+            }
+            u.backoff = Math.min(2 * u.backoff, MAX_BACKOFF);
+            u.changed = now;
+            u.signature = signature(path);
+            logger.warn("Upload not processed: " + path + "; trying again in " +
+                    (u.backoff * quietMillis / 1000) + " s unless it changes");
+            pending.put(path, u);
+        }
+        handedOut.clear();
+    }
+
+    /**
+     * Stop watching
+     */
+    public void close() throws IOException {
+        watcher.close();
+    }
+
+    private void handle(WatchKey key) {
+        Path dir = dirs.get(key);
+        Path upload = uploads.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                logger.warn("Missed changes under " + dir + "; looking at all of it again");
+                if (upload == null) {
+                    addAll(dir);
+                } else {
+                    touch(upload);
+                }
+                continue;
+            }
+            Path child = dir.resolve((Path) event.context());
+            if (upload == null) {
+                // a change at the top of an incoming folder
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    pending.remove(child);
+                } else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    added(child);
+                } else if (!isHidden(child)) {
+                    touch(child);
+                }
+            } else {
+                touch(upload);
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    registerTree(child, upload);
+                }
+            }
+        }
+        if (!key.reset()) {
+            // the folder is gone, for instance moved to staging
+            dirs.remove(key);
+            uploads.remove(key);
+        }
+    }
+
+    private void addAll(Path folder) {
+        try {
+            DirectoryStream<Path> entries = Files.newDirectoryStream(folder);
+            try {
+                for (Path entry : entries) {
+                    added(entry);
+                }
+            } finally {
+                entries.close();
+            }
+        } catch (IOException e) {
+            logger.error("Cannot list " + folder + ": " + e);
+        }
+    }
+
+    private void added(Path entry) {
+        if (isHidden(entry)) {
+            return;
+        }
+        logger.debug("Upload started: " + entry);
+        touch(entry);
+        registerTree(entry, entry);
+    }
+
+    private void touch(Path upload) {
+        Upload u = pending.get(upload);
+        if (u == null) {
+            u = new Upload();
+            pending.put(upload, u);
+        }
+        u.changed = System.currentTimeMillis();
+        // a changed upload may have been fixed
+        u.backoff = 1;
+    }
+
+    private Set<File> checkPending(long now) {
+        Set<File> ready = new HashSet<File>();
+        Iterator<Map.Entry<Path, Upload>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Upload> e = it.next();
+            Path path = e.getKey();
+            Upload u = e.getValue();
+            if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                it.remove();
+                continue;
+            }
+            if (now - u.changed < u.backoff * quietMillis) {
+                continue;
+            }
+            Long signature = signature(path);
+            if (signature != null && signature.equals(u.signature)) {
+                logger.info("Upload complete: " + path);
+                ready.add(path.toFile());
+                handedOut.put(path, u);
+                it.remove();
+            } else {
+                u.signature = signature;
+                u.changed = now;
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * @return how long to wait before the next pending upload may be ready
+     */
+    private long nextCheck(long now) {
+        long next = Long.MAX_VALUE;
+        for (Upload u : pending.values()) {
+            next = Math.min(next, u.changed + u.backoff * quietMillis - now);
+        }
+        return Math.max(1, next);
+    }
+
+    private void register(Path dir, Path upload) throws IOException {
+        WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        dirs.put(key, dir);
+        uploads.put(key, upload);
+    }
+
+    /**
+     * Watch a folder of an upload and the folders under it
+     */
+    private void registerTree(Path path, final Path upload) {
+        if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    register(dir, upload);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            // it is looked at again once it is quiet
+            logger.debug("Cannot watch " + path + ": " + e);
+        }
+    }
+
+    /**
+     * @return a number which changes when a file under path is added, removed, resized or modified, or null if
+     * path cannot be read
+     */
+    private static Long signature(Path path) {
+        final long[] signature = {17};
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    signature[0] = 31 * signature[0] + file.hashCode();
+                    signature[0] = 31 * signature[0] + attrs.size();
+                    signature[0] = 31 * signature[0] + attrs.lastModifiedTime().toMillis();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    signature[0] = 31 * signature[0] + file.hashCode();
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            return null;
+        }
+        return signature[0];
+    }
+
+    private static boolean isHidden(Path path) {
+        return path.getFileName().toString().startsWith(".");
+    }
+}
@@ -1,19 +1,13 @@
 package edu.princeton.dspace.etds;
 
 import org.apache.commons.cli.*;
-import org.w3c.dom.*;
 
-import java.text.ParseException;
 import java.util.*;
 import java.text.*;
-import java.util.zip.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.io.*;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-
 import org.apache.log4j.Logger;
 import org.apache.log4j.Level;
 
@@ -32,64 +26,82 @@ public class ETDImport {
     private static final String STAGING_DIR_NAME = "staging";
     private static final String HOLDING_DIR_NAME = "holding";
     private static final String REJECT_DIR_NAME = "reject";
-    private static final String DUBLIN_CORE_FILE = "dublin_core.xml";
 
-    private static final String PROQUEST_EMBARGO_CODE = "4";
+    private boolean verbose = false;
+    private boolean dryRun = false;
+    private boolean backgroundDelete = false;
+    private boolean direct = false;
+    private boolean external = false;
+    private File dropBoxFolder = null;
+    private File incomingFolder = null;
+    private File incomingUpdateFolder = null;
+    private File stagingFolder = null;
+    private File stagingDeptFolder = null;
+    private File holdingFolder = null;
+    private File rejectFolder = null;
+    private int stopStep = -1;
+    private int workers = 1;
+    private int imports = 1;
+    private FileTrees.Linking grouping = FileTrees.Linking.HARD;
+    private int step = 0;
+    // the step each run of the drop box starts at, after the configuration and mapfile are read
+    private int firstRunStep;
+
+    //config.xml values
+    private String authorlistTransformXSL = "";
+    private String eperson = "";
+    private Vector<String> adminEmails = new Vector<String>();
+    private String dspaceLoc = "";
+    private String dspaceHome = "/dspace";
+    private String configFile = "./config/etds/config.xml";
+
+    // Hashtable for translating between department name sent by ProQuest and the
+    //  collection ID in DSpace
+    private HashMap<String, String> collectionIDLookup = new HashMap<String, String>();
+
+    // kept from one run to the next when watching the drop box
+    private BatchPreparer preparer = null;
+    private File masterMapFile = null;
+    private MapfileStore prevIngested = null;
+    private InProcessImporter importer = null;
+    private boolean importerOpened = false;
 
     private static void usage(PrintStream out, String args[]) {
         logger.fatal("java " + ETDImport.class.getName() + "could not parse args: " + args.toString());
         out.println("java " + ETDImport.class.getName());
-        out.println("\t[-c config_file] [-d dspace_home] -l location [-h] [-t] [-v] [-y]");
+        out.println("\t[-b] [-c config_file] [-d dspace_home] [-g link|copy] -l location [-h] [-t] [-v] [-w workers] [-k imports] [-m seconds] [-x] [-y] [-z]");
     }
 
     public static void main(String[] argv) {
+        new ETDImport().start(argv);
+    }
 
-        boolean verbose = false;
-        boolean dryRun = false;
-        File dropBoxFolder = null;
-        File incomingFolder = null;
-        File incomingUpdateFolder = null;
-        File stagingFolder = null;
-        File holdingFolder = null;
-        File rejectFolder = null;
-        int stopStep = -1;
-        int step = 0;
-        Vector<File> batches = new Vector<File>();
-        Vector<File> updatebatches = new Vector<File>();
-        Vector<File> rejects = new Vector<File>();
-        Vector<File> existbutshouldnt = new Vector<File>();
-        Vector<File> dontexistbutshould = new Vector<File>();
-
-        //config.xml values
-        String metadataTransformXSL = "";
-        String schemaLocation = "";
-        String filelistTransformXSL = "";
-        String bitstreamTransformXSL = "";
-        String bitstreamExtension = "";
-        String authorlistTransformXSL = "";
-        String eperson = "";
-        String projectgrantnumber = "";
-        Vector<String> adminEmails = new Vector<String>();
-        String dspaceLoc = "";
-        String dspaceHome = "/dspace";
-        String configFile = "./config/etds/config.xml";
-
-        // Hashtable for translating between department name sent by ProQuest and the
-        //  collection ID in DSpace
-        HashMap<String, String> collectionIDLookup = new HashMap<String, String>();
+    /**
+     * Read the command line, the configuration and the master mapfile, then process the drop box once, or
+     * each time uploads to it are complete
+     */
+    private void start(String[] argv) {
+        long quietSeconds = 0;
 
         /******************************************************************/
         /*  STEP 1 - process command line arguments and confirm folders   */
         /******************************************************************/
         CommandLineParser parser = new PosixParser();
         Options options = new Options();
+        options.addOption("b", "background_delete", false, "delete the staging folder in the background (optional)");
         options.addOption("c", "config", true, "config file - default " + configFile);
         options.addOption("d", "dspace_home", true, "full path of dspace_home directory, default " + dspaceHome);
+        options.addOption("g", "group", true, "how batches are grouped by department: link (default) or copy");
         options.addOption("h", "help", false, "print help message");
+        options.addOption("k", "imports", true, "number of bin/dspace import commands run at once, default 1; only used with -x or when ItemImport cannot be run in this JVM");
         options.addOption("l", "location", true, "full path to drop box location (required)");
+        options.addOption("m", "monitor", true, "keep running, and process uploads once they have not changed for the given number of seconds (optional)");
         options.addOption("s", "step", true, "stop at given step");
         options.addOption("v", "verbose", false, "print debug info (optional)");
+        options.addOption("w", "workers", true, "number of zips unpacked, batches prepared and archives built at once, and of files copied at once when a batch is moved to another file system, default 1");
+        options.addOption("x", "external", false, "run bin/dspace import for each collection instead of ItemImport in this JVM (optional)");
         options.addOption("y", "dryRun", false, "dryRun - do not import items");
+        options.addOption("z", "direct", false, "stage single-batch zips without unpacking them in incoming (optional)");
         CommandLine line = null;
         try {
             line = parser.parse(options, argv);
@@ -122,6 +134,35 @@ public class ETDImport {
         if (line.hasOption('y')) {
             dryRun = true;
         }
+        if (line.hasOption('b')) {
+            backgroundDelete = true;
+        }
+        if (line.hasOption('z')) {
+            direct = true;
+        }
+        if (line.hasOption('x')) {
+            external = true;
+        }
+        if (line.hasOption('k')) {
+            imports = Integer.parseInt(line.getOptionValue('k'));
+        }
+        if (line.hasOption('m')) {
+            quietSeconds = Long.parseLong(line.getOptionValue('m'));
+        }
+        if (line.hasOption('g')) {
+            String g = line.getOptionValue('g');
+            if (g.equals("copy")) {
+                grouping = FileTrees.Linking.COPY;
+            } else if (!g.equals("link")) {
+                logger.fatal("Unknown grouping \"" + g + "\": use link or copy");
+                System.exit(1);
+            }
+        }
+        if (line.hasOption('w')) {
+            workers = Integer.parseInt(line.getOptionValue('w'));
+            //moves are one batch at a time, so their files may be copied on as many threads
+            FileTrees.setCopyThreads(workers);
+        }
         String location = line.getOptionValue('l');
 
         logger.info("Starting the dropbox processor...");
@@ -148,7 +189,7 @@ public class ETDImport {
             logger.fatal("Trouble confirming staging folder" + stagingFolder.getPath());
             System.exit(1);
         }
-        File stagingDeptFolder = new File(location + File.separator + STAGING_DIR_NAME + File.separator + "bydept");
+        stagingDeptFolder = new File(location + File.separator + STAGING_DIR_NAME + File.separator + "bydept");
         if (!stagingDeptFolder.exists()) {
             logger.info("Making directory " + stagingDeptFolder.getPath());
             stagingDeptFolder.mkdirs();
@@ -163,6 +204,8 @@ public class ETDImport {
             logger.fatal("Trouble confirming reject folder" + rejectFolder.getPath());
             System.exit(1);
         }
+        //finish deleting staging folders set aside by an earlier run
+        FileTrees.deleteLeftovers(dropBoxFolder);
 
         /******************************************************/
         /*      STEP 2 - Read and parse config.xml file    */
@@ -172,20 +215,16 @@ public class ETDImport {
             Configuration config = new Configuration(configFile, dspaceHome);
 
             //config.xml values
-            metadataTransformXSL = config.getMetadataTransformXSL();
-            schemaLocation = config.getSchemaLocation();
-            filelistTransformXSL = config.getFilelistTransformXSL();
-            bitstreamTransformXSL = config.getBitstreamTransformXSL();
-            bitstreamExtension = config.getBitstreamExtension();
             authorlistTransformXSL = config.getAuthorlistTransformXSL();
             eperson = config.getEperson();
-            projectgrantnumber = config.getProjectgrantnumber();
             adminEmails = config.getAdminEmails();
             dspaceLoc = config.getDspaceLoc();
 
             // Hashtable for translating between department name sent by ProQuest and the
             //  collection ID in DSpace
             collectionIDLookup = config.getCollectionIDLookup();
+
+            preparer = new BatchPreparer(config, dropBoxFolder, workers);
         } catch (Exception err) {
             logger.fatal("Trouble reading collection.xml file", err);
             System.exit(1);
@@ -197,53 +236,86 @@ public class ETDImport {
         step = checkStep(step, stopStep);
         logger.info("Reading master mapfile");
 
-        File masterMapFile = new File(holdingFolder.getPath() + File.separator + "mapfile");
-        if (!masterMapFile.exists()) {
+        masterMapFile = new File(holdingFolder.getPath() + File.separator + "mapfile");
+        //index the master mapfile by folder name to know the previously ingested folders
+        try {
+            prevIngested = MapfileStore.open(masterMapFile);
+        } catch (Exception err) {
+            logger.fatal("Error reading master mapfile", err);
+            System.exit(1);
+        }
 
-            logger.info("Master mapfile does not exist; creating it");
+        firstRunStep = step;
+        if (quietSeconds > 0) {
+            watch(quietSeconds * 1000);
+        } else {
+            run(null);
+        }
+    }
 
-            //create it from scratch
-            try {
-                masterMapFile.createNewFile();
-            } catch (Exception err) {
-                logger.error("Error creating master map list", err);
+    /**
+     * Keep processing the uploads to the incoming folders as they are completed
+     */
+    private void watch(long quietMillis) {
+        DropBoxWatcher watcher = null;
+        try {
+            watcher = new DropBoxWatcher(Arrays.asList(incomingFolder, incomingUpdateFolder), quietMillis);
+        } catch (IOException err) {
+            logger.fatal("Cannot watch the incoming folders", err);
+            System.exit(1);
+        }
+        logger.info("Watching " + incomingFolder.getPath() + " and " + incomingUpdateFolder.getPath());
+        try {
+            while (true) {
+                Set<File> ready = watcher.awaitReady();
+                run(ready);
+                //what is still in the incoming folders failed, and is tried again later
+                watcher.requeue();
+                logger.info("Waiting for uploads");
             }
+        } catch (InterruptedException err) {
+            logger.info("Stopped watching the drop box");
         }
-        //read lines from master mapfile to generate list of previously ingested folders
-
-        logger.info("generating list of previously ingested folders");
+    }
 
+    /**
+     * Process the batches in the incoming folders
+     *
+     * @param ready the uploads in the incoming folders to process, or null to process everything in them
+     */
+    private void run(Set<File> ready) {
+        step = firstRunStep;
+        Vector<File> batches = new Vector<File>();
+        Vector<File> updatebatches = new Vector<File>();
+        List<File> stagedZips = new ArrayList<File>();
+        Vector<File> rejects = new Vector<File>();
+        Vector<File> existbutshouldnt = new Vector<File>();
+        Vector<File> dontexistbutshould = new Vector<File>();
         FileReader fr;
         BufferedReader br;
         String s;
-        Vector<String> prevIngested = new Vector<String>();
-        Vector<String> prevIngested2 = new Vector<String>();
-        try {
-            fr = new FileReader(masterMapFile);
-            br = new BufferedReader(fr);
-            while ((s = br.readLine()) != null) {
-                if (!(s.trim().equals(""))) {
-                    String[] xx = s.split(" ");
-                    if (xx.length > 1) {
-                        prevIngested.add(xx[0]);
-                        prevIngested2.add(xx[1]);
-                    }
-                }
-            }
-            br.close();
-            fr.close();
-        } catch (Exception err) {
-            logger.fatal("Error reading master mapfile", err);
-            System.exit(1);
-        }
 
         /*******************************************************/
 		/*   STEP 4 - Unzip as needed in both incoming folders */
         /*******************************************************/
         step = checkStep(step, stopStep);
         logger.info("Examining drop box incoming folder for batches");
-        unzipAsNeeded(incomingFolder, verbose);
-        unzipAsNeeded(incomingUpdateFolder, verbose);
+        logger.info("Looking for zip files");
+        BatchExtractor extractor = new BatchExtractor(workers);
+        try {
+            if (direct) {
+                //single batches go straight from their zip to the staging folder; the rest are unpacked
+                stagedZips = new ZipStager(workers).stage(select(BatchExtractor.findZips(incomingFolder), ready), stagingFolder);
+            }
+            extractor.extract(select(BatchExtractor.findZips(incomingFolder, incomingUpdateFolder), ready));
+        } catch (InterruptedException err) {
+            logger.error("Interrupted while unzipping", err);
+        }
+        if (ready != null) {
+            //what the zips were unpacked into is ready as well
+            ready = new HashSet<File>(ready);
+            ready.addAll(extractor.getUnpacked());
+        }
 
         /********************************************************/
 		/* STEP 5 - Create vectors for new and existing batches */
@@ -254,7 +326,7 @@ public class ETDImport {
         int counter = 0;
         while (counter < allF.length) {
             File x = allF[counter];
-            if (x.isDirectory()) {
+            if (x.isDirectory() && (ready == null || ready.contains(x))) {
 
                 logger.info("Folder found: " + x.getName());
 
@@ -266,7 +338,7 @@ public class ETDImport {
         counter = 0;
         while (counter < allF.length) {
             File x = allF[counter];
-            if (x.isDirectory()) {
+            if (x.isDirectory() && (ready == null || ready.contains(x))) {
 
                 logger.info("Update folder found: " + x.getName());
 
@@ -281,247 +353,33 @@ public class ETDImport {
         step = checkStep(step, stopStep);
         logger.info("Moving batches to staging directory");
         moveToStaging(batches, verbose, stagingFolder);
+        batches.addAll(stagedZips);
 
         /*********************************************************/
 		/* STEP 7 - Process nonexisting batches from staging dir */
         /*********************************************************/
         step = checkStep(step, stopStep);
         logger.info("Processing (nonexisting) batches");
+        // the ProQuest XML of each batch is parsed once, the later steps and the report reuse the result
+        HashMap<String, BatchMetadata> batchMetadata = new HashMap<String, BatchMetadata>();
+        Vector<File> toPrepare = new Vector<File>();
         counter = 0;
         while (counter < batches.size()) {
             File batch = batches.get(counter);
-            File xmlFile = null;
 
             logger.info("Examing batch #" + (counter + 1) + ": " + batch.getName());
 
-            //Check to see if batch already exists
-            int subcounter = 0;
-            boolean batchExists = false;
-            while (subcounter < prevIngested.size()) {
-                String folder = prevIngested.get(subcounter);
-                if (batch.getName().equals(folder)) {
-                    batchExists = true;
-                }
-                subcounter = subcounter + 1;
-            }
             //in this case, batch shouldn't already exist
-            if (batchExists) {
+            if (prevIngested.contains(batch.getName())) {
                 logger.warn("Folder already exists: " + batch.getName());
                 existbutshouldnt.add(batch);
                 rejectBatch(batch, rejectFolder, verbose);
-                counter = counter + 1;
-                continue;
-            }
-            xmlFile = findXMLFileFor(batch);
-            if (xmlFile == null) {
-                logger.warn("ERROR: No xml file in batch " + batch.getName());
-                rejects.add(batch);
-                rejectBatch(batch, rejectFolder, verbose);
-                counter = counter + 1;
-                continue;
-            }
-
-            logger.info("Base batch XML file found: " + xmlFile.getName());
-
-
-            //move schema files
-            if (!schemaLocation.equals("")) {
-
-                logger.info("Moving schema files");
-
-                try {
-                    moveSchema(schemaLocation, batch, dropBoxFolder);
-                } catch (Exception err) {
-                    logger.error("ERROR: Schema files cannot be read", err);
-                    rejects.add(batch);
-                    rejectBatch(batch, rejectFolder, verbose);
-                    counter = counter + 1;
-                    continue;
-                }
-            }
-            //metadata transformer to create dublin_core.xml file
-            if (!metadataTransformXSL.equals("")) {
-                try {
-                    createDCFile(xmlFile, metadataTransformXSL, dropBoxFolder);
-                } catch (Exception err) {
-                    logger.error("ERROR generating dublin core.xml", err);
-                    rejects.add(batch);
-                    rejectBatch(batch, rejectFolder, verbose);
-                    counter = counter + 1;
-                    continue;
-                }
             } else {
-                if (!(xmlFile.getName().equals(DUBLIN_CORE_FILE))) {
-                    xmlFile.renameTo(new File(xmlFile.getParent() + File.separator + DUBLIN_CORE_FILE));
-                }
-
-                logger.info("Skipping metadata transform - XML is already in DC format");
-
-            }
-
-            // Create the metadata_pu.xml file that holds the project grant number
-            createMetaDataPUFile(batch, projectgrantnumber);
-
-            //next generate bitstream if neccesary
-            if (!(bitstreamTransformXSL.equals(""))) {
-
-                logger.info("Transforming " + xmlFile.getName() + " into bitstream file using " + bitstreamTransformXSL);
-
-                try {
-                    createBitstream(xmlFile, bitstreamTransformXSL, dropBoxFolder, bitstreamExtension);
-                } catch (Exception err) {
-                    System.out.println("ERROR generating bitstream");
-                    rejects.add(batch);
-                    rejectBatch(batch, rejectFolder, verbose);
-                    counter = counter + 1;
-                    continue;
-                }
-            }
-            //next generate authorlist if neccesary
-            if (!(authorlistTransformXSL.equals(""))) {
-
-                logger.info("Transforming " + xmlFile.getName() + " into authorlist file using " + authorlistTransformXSL);
-
-                try {
-                    createAuthorlist(xmlFile, authorlistTransformXSL, dropBoxFolder);
-                } catch (Exception err) {
-                    logger.error("ERROR generating bitstream", err);
-                    rejects.add(batch);
-                    rejectBatch(batch, rejectFolder, verbose);
-                    counter = counter + 1;
-                    continue;
-                }
-            }
-            //next, generate 'contents' file
-
-            logger.info("Generating contents file");
-
-            File contentsFile = new File(xmlFile.getParent() + File.separator + "contents");
-            if (!contentsFile.exists()) {
-                //assumes that if contents file is present it's already correct
-                try {
-                    contentsFile.createNewFile();
-                } catch (Exception err) {
-
-                    logger.error("ERROR generating contents file: " + contentsFile.getPath(), err);
-                    rejects.add(batch);
-                    rejectBatch(batch, rejectFolder, verbose);
-                    counter = counter + 1;
-                    continue;
-                }
-                if (filelistTransformXSL.equals("")) {
-                    //no transform specified, so just list everything in the folder except hidden files, the xml, dtd, and ent files, and the contents file itself
-
-                    logger.info("No file transform specified; reading folder contents");
-
-                    File[] batchFiles = batch.listFiles();
-                    subcounter = 0;
-                    FileWriter fwriter = null;
-                    BufferedWriter writer = null;
-                    boolean error = false;
-                    try {
-                        fwriter = new FileWriter(contentsFile);
-                        writer = new BufferedWriter(fwriter);
-                        while (subcounter < batchFiles.length) {
-                            File file = batchFiles[subcounter];
-                            if (!((file.getName().startsWith(".")) ||
-                                    (file.getName().toLowerCase().endsWith("xml")) ||
-                                    (file.getName().toLowerCase().endsWith("dtd")) ||
-                                    (file.getName().toLowerCase().endsWith("ent")) ||
-                                    (file.getName().toLowerCase().equals("contents")))) {
-                                if (file.isDirectory()) {
-                                    File[] subfiles = file.listFiles();
-                                    int subsubcounter = 0;
-                                    while (subsubcounter < subfiles.length) {
-                                        //add file to contents file
-                                        //TODO currently can only go in one level!
-                                        if (subfiles[subsubcounter].isDirectory()) {
-                                            error = true;
-                                        } else {
-                                            writer.write(file.getName() + File.separator + subfiles[subsubcounter].getName());
-                                            writer.newLine();
-                                            writer.flush();
-                                        }
-                                        subsubcounter = subsubcounter + 1;
-                                    }
-                                } else {
-                                    //add file to contents file
-                                    writer.write(file.getName());
-                                    writer.newLine();
-                                    writer.flush();
-                                }
-                            }
-                            subcounter = subcounter + 1;
-                        }
-                        writer.close();
-                        fwriter.close();
-                    } catch (Exception err) {
-                        if (writer != null) {
-                            try {
-                                writer.close();
-                            } catch (Exception er) {
-                            }
-                        }
-                        if (fwriter != null) {
-                            try {
-                                fwriter.close();
-                            } catch (Exception er) {
-                            }
-                        }
-
-                        logger.error("ERROR writing content file", err);
-                        rejects.add(batch);
-                        rejectBatch(batch, rejectFolder, verbose);
-                        counter = counter + 1;
-                        continue;
-                    }
-                    if (error) {
-                        logger.error("ERROR batch contains nonempty subfolders");
-                        rejects.add(batch);
-                        rejectBatch(batch, rejectFolder, verbose);
-                        counter = counter + 1;
-                        continue;
-                    }
-                } else {
-
-                    logger.info("generating contents file using XSL");
-
-                    //do the transformation to generate the contents list
-                    File xslFile = null;
-                    try {
-                        xslFile = openFile(filelistTransformXSL, dropBoxFolder.getPath());
-                        if ((!xslFile.isFile())) {
-                            logger.error("ERROR: not a file: " + xslFile.getPath());
-                            rejects.add(batch);
-                            rejectBatch(batch, rejectFolder, verbose);
-                            counter = counter + 1;
-                            continue;
-                        }
-                    } catch (Exception err) {
-                        logger.error("ERROR: XSL file cannot be read: " + xslFile.getPath(), err);
-                        rejects.add(batch);
-                        rejectBatch(batch, rejectFolder, verbose);
-                        counter = counter + 1;
-                        continue;
-                    }
-
-                    logger.info("Transforming " + xmlFile.getName() + " into contents file using " + xslFile.getName());
-
-                    //run the contents transformation
-                    try {
-                        ETDImport.doTransform(xslFile.getPath(), xmlFile.getPath(), xmlFile.getParent() + File.separator + "contents");
-                    } catch (Exception err) {
-
-                        logger.error("ERROR generating transformation for batch " + batch.getName(), err);
-                        rejects.add(batch);
-                        rejectBatch(batch, rejectFolder, verbose);
-                        counter = counter + 1;
-                        continue;
-                    }
-                }
+                toPrepare.add(batch);
             }
             counter = counter + 1;
         }
+        prepareBatches(preparer, toPrepare, true, batchMetadata, rejects, rejectFolder, verbose);
 
         if (dryRun) {
             logger.info("Exiting before importing items!");
@@ -536,7 +394,8 @@ public class ETDImport {
 
 
         //Before importing we must group batches by department collection ID
-        String[] collection_ids = groupBatchesByDepartment(batches, collectionIDLookup);
+        String[] collection_ids = groupBatchesByDepartment(batches, batchMetadata, collectionIDLookup, grouping,
+                rejects, rejectFolder, verbose);
 
         PrintStream oldOut = System.out;
         PrintStream oldErr = System.err;
@@ -546,23 +405,34 @@ public class ETDImport {
         System.setErr(new PrintStream(new LoggingOutputStream(logger, Level.ERROR), true));
 
 
+        //DSpace is started once, before the first import, unless it cannot be run in this JVM
+        if (!external && !importerOpened && collection_ids.length > 0) {
+            importer = InProcessImporter.open(dspaceHome, eperson);
+            importerOpened = true;
+        }
+
+        //up to imports commands run at once, while the results of the earliest one are read
+        ProcessRunner runner = null;
+        List<Future<Integer>> commands = new ArrayList<Future<Integer>>();
+        if (importer == null) {
+            runner = new ProcessRunner(imports);
+            for (int i = 0; i < Math.min(imports, collection_ids.length); i++) {
+                commands.add(submitImport(runner, dspaceHome, eperson, stagingFolder, collection_ids[i]));
+            }
+        }
+
         Vector<String> mappings = new Vector<String>();
         for (int i = 0; i < collection_ids.length; i++) {
-            String collectionFolder = stagingFolder.getPath() + File.separator + "bydept" + File.separator + collection_ids[i].replace(File.separatorChar, '_');
-
-            // remove mapfile in case it exists
+            String collectionFolder = collectionFolder(stagingFolder, collection_ids[i]);
             File mapfile = new File(collectionFolder + File.separator + "mapfile");
-            if (mapfile.exists()) {
-                if (!mapfile.delete()) {
-                    System.out.println("ERROR: Mapfile cannot be deleted!");
-                }
-            }
 
-            //run item import on batches
-            String args[] = new String[]{"--add", "--eperson=" + eperson, "--collection=" + collection_ids[i],
-                    "--source=" + collectionFolder,
-                    "--mapfile=" + mapfile.getPath()};
-            int result = executeCommand(dspaceHome + File.separator + "bin/dspace import", args, stopStep == step);
+            int result;
+            if (importer != null) {
+                removeMapfile(mapfile);
+                result = importer.importItems(collection_ids[i], collectionFolder, mapfile.getPath());
+            } else {
+                result = waitFor(runner, commands.get(i));
+            }
             if (0 != result) {
                 logger.error("Failed batch import for collection " + collection_ids[i]);
             } else {
@@ -573,31 +443,37 @@ public class ETDImport {
                 //insert new lines in master mapfile
                 logger.info("Appending to mapFile " + mapFile.getAbsolutePath() + " to " + masterMapFile.getPath());
                 try {
-                    FileWriter fwriter = null;
-                    BufferedWriter writer = null;
-                    fwriter = new FileWriter(masterMapFile, true);
-                    writer = new BufferedWriter(fwriter);
                     fr = new FileReader(mapFile);
                     br = new BufferedReader(fr);
                     while ((s = br.readLine()) != null) {
-                        writer.append(s);
-                        writer.newLine();
+                        prevIngested.add(s);
                         mappings.add(s);
                     }
                     br.close();
                     fr.close();
-                    fwriter.flush();
-                    writer.flush();
-                    fwriter.close();
-                    writer.close();
+                    //the lines of one import are forced to disk together
+                    prevIngested.commit();
                 } catch (Exception err) {
                     logger.error("Error appending to master mapfile " + mapFile.getAbsolutePath(), err);
                 }
             }
 
+            if (runner != null && step == stopStep) {
+                //the imports started ahead of this one are not left running after the exit
+                runner.destroy();
+            }
             step = checkStep(step, stopStep);
 
-
+            //the collection which takes the place of this one is started once it is accounted for
+            if (runner != null && i + imports < collection_ids.length) {
+                commands.add(submitImport(runner, dspaceHome, eperson, stagingFolder, collection_ids[i + imports]));
+            }
+        }
+        if (importer != null) {
+            importer.close();
+        }
+        if (runner != null) {
+            runner.shutdown();
         }
 
 
@@ -612,10 +488,11 @@ public class ETDImport {
 
         //check staging dir for folders
         File[] batchFolders = stagingFolder.listFiles();
+        BatchArchiver archiver = new BatchArchiver(workers);
         counter = 0;
         while (counter < batchFolders.length) {
             File batchFolder = batchFolders[counter];
-            if (batchFolder.isFile()) {
+            if (batchFolder.isFile() || batchFolder.equals(stagingDeptFolder)) {
                 counter = counter + 1;
                 continue;
             }
@@ -671,19 +548,19 @@ public class ETDImport {
                     logger.error("Error appending to master author list", err);
                 }
             }
-            //create zip file
-
-            logger.info("Creating zip file");
-
-            File zipped = new File(holdingFolder.getPath() + File.separator + batchFolder.getName() + ".zip");
+            //keep the zip the batch was delivered in, or create one once all the batches have been seen
+            File zipped = unusedName(new File(holdingFolder, batchFolder.getName() + ".zip"));
             try {
-                ETDImport.zip(batchFolder, zipped);
-            } catch (Exception err) {
-
-                logger.error("Error creating zip file", err);
+                if (!ZipStager.moveOriginal(batchFolder, zipped)) {
+                    archiver.add(batchFolder, zipped);
+                }
+            } catch (IOException err) {
+                logger.error("Error moving original zip file of " + batchFolder.getName(), err);
             }
             counter = counter + 1;
         }
+        logger.info("Creating zip files");
+        archiveBatches(archiver);
 
 
         /***********************************************************/
@@ -691,10 +568,7 @@ public class ETDImport {
         /***********************************************************/
         step = checkStep(step, stopStep);
         batches = null;
-        //to ensure file refs are gone
-        System.gc();
-        deleteDirectory(stagingFolder);
-        stagingFolder.mkdirs();
+        clearStaging(stagingFolder, backgroundDelete);
 
         if (false) {
             logger.info("Exiting before processing existing batches!");
@@ -724,230 +598,30 @@ public class ETDImport {
         }
         counter = 0;
         Vector<String> existMappings = new Vector<String>();
+        toPrepare = new Vector<File>();
         while (counter < updatebatches.size()) {
             File batch = updatebatches.get(counter);
-            File xmlFile = null;
             if (verbose) {
                 System.out.println("Examing batch #" + (counter + 1) + ": " + batch.getName());
             }
             //Check to see if batch already exists and create mapping file for email
-            int subcounter = 0;
-            boolean batchExists = false;
-            while (subcounter < prevIngested.size()) {
-                String folder = prevIngested.get(subcounter);
-                if (batch.getName().equals(folder)) {
-                    batchExists = true;
-                    existMappings.add(prevIngested.get(subcounter) + " " + prevIngested2.get(subcounter));
-                }
-                subcounter = subcounter + 1;
+            String handle = prevIngested.getHandle(batch.getName());
+            if (handle != null) {
+                existMappings.add(batch.getName() + " " + handle);
             }
             //in this case, batch SHOULD already exist
-            if (!batchExists) {
+            if (handle == null) {
                 System.out.println("Folder does not already exist: " + batch.getName());
                 dontexistbutshould.add(batch);
                 rejectBatch(batch, rejectFolder, verbose);
-                counter = counter + 1;
-                continue;
-            }
-            xmlFile = findXMLFileFor(batch);
-            if (xmlFile == null) {
-                System.out.println("ERROR: No xml file in batch " + batch.getName());
-                rejects.add(batch);
-                rejectBatch(batch, rejectFolder, verbose);
-                counter = counter + 1;
-                continue;
-            }
-            if (verbose) {
-                System.out.println("Base batch XML file found: " + xmlFile.getName());
-            }
-            //move schema files
-            if (!schemaLocation.equals("")) {
-                if (verbose) {
-                    System.out.println("Moving schema files");
-                }
-                try {
-                    moveSchema(schemaLocation, batch, dropBoxFolder);
-                } catch (Exception err) {
-                    err.printStackTrace();
-                    System.out.println("ERROR: Schema files cannot be read");
-                    rejects.add(batch);
-                    rejectBatch(batch, rejectFolder, verbose);
-                    counter = counter + 1;
-                    continue;
-                }
-            }
-            //metadata transformer to create dublin_core.xml file
-            if (!metadataTransformXSL.equals("")) {
-                try {
-                    createDCFile(xmlFile, metadataTransformXSL, dropBoxFolder);
-                } catch (Exception err) {
-                    System.out.println("ERROR generating dublin core.xml");
-                    err.printStackTrace();
-                    rejects.add(batch);
-                    rejectBatch(batch, rejectFolder, verbose);
-                    counter = counter + 1;
-                    continue;
-                }
             } else {
-                if (!(xmlFile.getName().equals(DUBLIN_CORE_FILE))) {
-                    xmlFile.renameTo(new File(xmlFile.getParent() + File.separator + DUBLIN_CORE_FILE));
-                }
-                if (verbose) {
-                    System.out.println("Skipping metadata transform - XML is already in DC format");
-                }
-            }
-
-            // Create the metadata_pu.xml file that holds the project grant number
-            createMetaDataPUFile(batch, projectgrantnumber);
-
-            //next generate bitstream if neccessary
-            if (!(bitstreamTransformXSL.equals(""))) {
-                if (verbose) {
-                    System.out.println("Transforming " + xmlFile.getName() + " into bitstream file using " + bitstreamTransformXSL);
-                }
-                try {
-                    createBitstream(xmlFile, bitstreamTransformXSL, dropBoxFolder, bitstreamExtension);
-                } catch (Exception err) {
-                    System.out.println("ERROR generating bitstream");
-                    rejects.add(batch);
-                    rejectBatch(batch, rejectFolder, verbose);
-                    counter = counter + 1;
-                    continue;
-                }
-            }
-            //no need to generate authorlist for existing records
-            //next, generate 'contents' file
-            if (verbose) {
-                System.out.println("Generating contents file");
-            }
-            File contentsFile = new File(xmlFile.getParent() + File.separator + "contents");
-            if (!contentsFile.exists()) {
-                //assumes that if contents file is present it's already correct
-                try {
-                    contentsFile.createNewFile();
-                } catch (Exception err) {
-                    err.printStackTrace();
-                    System.out.println("ERROR generating contents file: " + contentsFile.getPath());
-                    rejects.add(batch);
-                    rejectBatch(batch, rejectFolder, verbose);
-                    counter = counter + 1;
-                    continue;
-                }
-                if (filelistTransformXSL.equals("")) {
-                    //no transform specified, so just list everything in the folder except the xml, dtd, and ent files, and the contents file itself
-                    if (verbose) {
-                        System.out.println("No file transform specified; reading folder contents");
-                    }
-                    File[] batchFiles = batch.listFiles();
-                    subcounter = 0;
-                    FileWriter fwriter = null;
-                    BufferedWriter writer = null;
-                    boolean error = false;
-                    try {
-                        fwriter = new FileWriter(contentsFile);
-                        writer = new BufferedWriter(fwriter);
-                        while (subcounter < batchFiles.length) {
-                            File file = batchFiles[subcounter];
-                            if (!((file.getName().startsWith(".")) ||
-                                    (file.getName().toLowerCase().endsWith("xml")) ||
-                                    (file.getName().toLowerCase().endsWith("dtd")) ||
-                                    (file.getName().toLowerCase().endsWith("ent")) ||
-                                    (file.getName().toLowerCase().equals("contents")))) {
-                                if (file.isDirectory()) {
-                                    File[] subfiles = file.listFiles();
-                                    int subsubcounter = 0;
-                                    while (subsubcounter < subfiles.length) {
-                                        //add file to contents file
-                                        //TODO currently can only go in one level!
-                                        if (subfiles[subsubcounter].isDirectory()) {
-                                            error = true;
-                                        } else {
-                                            writer.write(file.getName() + File.separator + subfiles[subsubcounter].getName());
-                                            writer.newLine();
-                                            writer.flush();
-                                        }
-                                        subsubcounter = subsubcounter + 1;
-                                    }
-                                } else {
-                                    //add file to contents file
-                                    writer.write(file.getName());
-                                    writer.newLine();
-                                    writer.flush();
-                                }
-                            }
-                            subcounter = subcounter + 1;
-                        }
-                        writer.close();
-                        fwriter.close();
-                    } catch (Exception err) {
-                        if (writer != null) {
-                            try {
-                                writer.close();
-                            } catch (Exception er) {
-                            }
-                        }
-                        if (fwriter != null) {
-                            try {
-                                fwriter.close();
-                            } catch (Exception er) {
-                            }
-                        }
-                        err.printStackTrace();
-                        System.out.println("ERROR writing content file");
-                        rejects.add(batch);
-                        rejectBatch(batch, rejectFolder, verbose);
-                        counter = counter + 1;
-                        continue;
-                    }
-                    if (error) {
-                        System.out.println("ERROR batch contains nonempty subfolders");
-                        rejects.add(batch);
-                        rejectBatch(batch, rejectFolder, verbose);
-                        counter = counter + 1;
-                        continue;
-                    }
-                } else {
-                    if (verbose) {
-                        System.out.println("generating contents file using XSL");
-                    }
-                    //do the transformation to generate the contents list
-                    File xslFile = null;
-                    try {
-                        xslFile = openFile(filelistTransformXSL, dropBoxFolder.getPath());
-                        if (!xslFile.isFile()) {
-                            System.out.println("ERROR: not a file: " + xslFile.getPath());
-                            rejects.add(batch);
-                            rejectBatch(batch, rejectFolder, verbose);
-                            counter = counter + 1;
-                            continue;
-                        }
-                    } catch (Exception err) {
-                        err.printStackTrace();
-                        System.out.println("ERROR: XSL file cannot be read: " + xslFile.getPath());
-                        rejects.add(batch);
-                        rejectBatch(batch, rejectFolder, verbose);
-                        counter = counter + 1;
-                        continue;
-                    }
-                    if (verbose) {
-                        System.out.println("Transforming " + xmlFile.getName() + " into contents file using " + xslFile.getName());
-                    }
-                    //run the contents transformation
-                    try {
-                        ETDImport.doTransform(xslFile.getPath(), xmlFile.getPath(), xmlFile.getParent() + File.separator + "contents");
-                    } catch (Exception err) {
-                        err.printStackTrace();
-                        System.out.println("ERROR generating transformation for batch " + batch.getName());
-                        rejects.add(batch);
-                        rejectBatch(batch, rejectFolder, verbose);
-                        counter = counter + 1;
-                        continue;
-                    }
-                }
+                toPrepare.add(batch);
             }
-
             counter = counter + 1;
         }
+        //no need to generate authorlist for existing records
+        prepareBatches(preparer, toPrepare, false, batchMetadata, rejects, rejectFolder, verbose);
+
         if (verbose) {
             System.out.println("Running ItemImport command on (existing) batches...");
         }
@@ -968,7 +642,7 @@ public class ETDImport {
         counter = 0;
         while (counter < batchFolders.length) {
             File batchFolder = batchFolders[counter];
-            if (batchFolder.isFile()) {
+            if (batchFolder.isFile() || batchFolder.equals(stagingDeptFolder)) {
                 counter = counter + 1;
                 continue;
             }
@@ -976,29 +650,18 @@ public class ETDImport {
                 System.out.println("Cleaning up " + batchFolders[counter].getName());
             }
             //create new zip file
-            if (verbose) {
-                System.out.println("Creating zip file");
-            }
-            File zipped = new File(holdingFolder.getPath() + File.separator + batchFolder.getName() + ".zip");
-            while (zipped.exists()) {
-                String newone = zipped.getPath() + ".new";
-                zipped = new File(newone);
-            }
-            try {
-                ETDImport.zip(batchFolder, zipped);
-            } catch (Exception err) {
-                err.printStackTrace();
-                System.out.println("Error creating zip file");
-            }
+            File zipped = unusedName(new File(holdingFolder, batchFolder.getName() + ".zip"));
+            archiver.add(batchFolder, zipped);
             counter = counter + 1;
         }
+        if (verbose) {
+            System.out.println("Creating zip files");
+        }
+        archiveBatches(archiver);
 
         //delete everything in staging dir
         batches = null;
-        //to ensure file refs are gone
-        System.gc();
-        deleteDirectory(stagingFolder);
-        stagingFolder.mkdirs();
+        clearStaging(stagingFolder, backgroundDelete);
 
         ////////////////////////////////////////
         //email results to all participants, if there's anything to email
@@ -1010,7 +673,7 @@ public class ETDImport {
                 message = message + "The following items have been imported and may be accessed using the links below:\n\n";
                 while (counter < mappings.size()) {
                     String[] x = mappings.get(counter).split(" ");
-                    message = message + dspaceLoc + x[1] + " (" + x[0] + ") \n";
+                    message = message + dspaceLoc + x[1] + " (" + x[0] + ")" + describe(batchMetadata.get(x[0])) + " \n";
                     counter = counter + 1;
                 }
                 message = message + "\n";
@@ -1020,7 +683,7 @@ public class ETDImport {
                 message = message + "The following items already exist in the repository and have been updated:\n\n";
                 while (counter < existMappings.size()) {
                     String[] x = existMappings.get(counter).split(" ");
-                    message = message + dspaceLoc + x[1] + " (" + x[0] + ") \n";
+                    message = message + dspaceLoc + x[1] + " (" + x[0] + ")" + describe(batchMetadata.get(x[0])) + " \n";
                     counter = counter + 1;
                 }
                 message = message + "\n";
@@ -1058,50 +721,59 @@ public class ETDImport {
             System.out.println(message);
         }
 
+        //snapshot the master mapfile index for the next run
+        try {
+            prevIngested.close();
+        } catch (Exception err) {
+            logger.error("Error writing master mapfile snapshot", err);
+        }
+
         logger.info("Dropbox Processor finished successfully");
 
     }
 
-    private static void createAuthorlist(File xmlFile, String authorlistTransformXSL, File dropBoxFolder) throws Exception {
-        File xslFile = openFile(authorlistTransformXSL, dropBoxFolder.getPath());
-        if (!xslFile.isFile()) {
-            throw new Exception("nota file: " + authorlistTransformXSL);
+    /**
+     * Prepare the given batches for ItemImport, rejecting the ones which cannot be prepared in the order of the
+     * batches, and remember the metadata of the others
+     */
+    private static void prepareBatches(BatchPreparer preparer, Vector<File> batches, boolean authorlist,
+                                       HashMap<String, BatchMetadata> batchMetadata, Vector<File> rejects,
+                                       File rejectFolder, boolean verbose) {
+        List<BatchMetadata> prepared;
+        try {
+            prepared = preparer.prepare(batches, authorlist);
+        } catch (InterruptedException err) {
+            logger.fatal("Interrupted while preparing batches", err);
+            System.exit(1);
+            return;
         }
-        //run the authorlist transformation
-        ETDImport.doTransform(xslFile.getPath(), xmlFile.getPath(), xmlFile.getParent() + File.separator + "aulist.xml");
-    }
-
-    private static void createBitstream(File xmlFile, String bitstreamTransformXSL, File dropBoxFolder, String bitstreamExtension) throws Exception {
-        File xslFile = openFile(bitstreamTransformXSL, dropBoxFolder.getPath());
-        if (!xslFile.isFile()) {
-            throw new Exception("nota file: " + bitstreamTransformXSL);
+        for (int i = 0; i < batches.size(); i++) {
+            File batch = batches.get(i);
+            BatchMetadata metadata = prepared.get(i);
+            if (metadata == null) {
+                rejects.add(batch);
+                rejectBatch(batch, rejectFolder, verbose);
+            } else {
+                batchMetadata.put(batch.getName(), metadata);
+            }
         }
-        //run the bitstream transformation
-        ETDImport.doTransform(xslFile.getPath(), xmlFile.getPath(), xmlFile.getParent() + File.separator + xmlFile.getName().substring(0, xmlFile.getName().length() - 4) + "." + bitstreamExtension);
     }
 
-
-    private static void createDCFile(File xmlFile, String metadataTransformXSL, File dropBoxFolder) throws Exception {
-        if (xmlFile.getName().equals(DUBLIN_CORE_FILE)) {
-            throw new Exception("can't handle " + DUBLIN_CORE_FILE);
-        }
-        File xslFile = openFile(metadataTransformXSL, dropBoxFolder.getPath());
-        if (!xmlFile.isFile()) {
-            throw new Exception(metadataTransformXSL + " not a file");
+    /**
+     * @return the title and author of a batch for the report, or an empty string if they are not known
+     */
+    private static String describe(BatchMetadata metadata) {
+        if (metadata == null || metadata.getTitle() == null) {
+            return "";
         }
-        //run the metadata transformation
-        ETDImport.doTransform(xslFile.getPath(), xmlFile.getPath(), xmlFile.getParent() + File.separator + DUBLIN_CORE_FILE);
-    }
-
-    private static void moveSchema(String schemaLocation, File batch, File dropBoxFolder) throws Exception {
-        File schemaFolder = openFile(schemaLocation, dropBoxFolder.getPath());
-        if (!schemaFolder.isDirectory()) {
-            throw new Exception(schemaLocation + " not a directory");
+        String s = " " + metadata.getTitle();
+        if (metadata.getAuthor() != null) {
+            s = s + " / " + metadata.getAuthor();
         }
-        copyFolderContents(schemaFolder, batch);
+        return s;
     }
 
-    private static File findXMLFileFor(File batch) {
+    static File findXMLFileFor(File batch) {
         File[] files = batch.listFiles();
         if (files == null) {
             return null;
@@ -1134,12 +806,7 @@ public class ETDImport {
             logger.info("Moving " + batch.getName());
 
             try {
-                copyFolder(batch, stagingFolder);
-
-                logger.info("Deleting " + batch.getName() + " from incoming folder");
-
-                deleteDirectory(batch);
-                batches.set(counter, new File(stagingFolder + File.separator + batch.getName()));
+                batches.set(counter, FileTrees.move(batch, stagingFolder));
             } catch (Exception err) {
                 logger.error("Error moving " + batch.getName() + " to staging directory", err);
             }
@@ -1148,116 +815,46 @@ public class ETDImport {
 
     }
 
-    private static void unzipAsNeeded(File incomingFolder, boolean verbose) {
-        File[] incomingFolderContents = incomingFolder.listFiles();
-        int counter = 0;
-
-        logger.info("Looking for zip files");
-
-        while (counter < incomingFolderContents.length) {
-            File x = incomingFolderContents[counter];
-            if (x.isFile()) {
-                if (ETDImport.getExtension(x.getName()).toLowerCase().equals("zip")) {
-                    try {
-
-                        logger.info("Zip file found: " + x.getName());
-
-                        //file is zip file; parse it
-                        ZipFile zipFile = new ZipFile(x, ZipFile.OPEN_READ);
-                        //are there ONLY directories in the zip file?
-                        boolean onlydirectories = true;
-                        Enumeration zipFileEntries = zipFile.entries();
-                        while (zipFileEntries.hasMoreElements()) {
-                            ZipEntry entry = (ZipEntry) zipFileEntries.nextElement();
-                            String currentEntry = entry.getName();
-                            if (!currentEntry.contains("/")) {
-                                onlydirectories = false;
-                            }
-                        }
-                        if (!onlydirectories) {
-                            //assume that file is a group of files zipped directly, without a parent folder
-
-                            logger.info("File has no directory structure; creating a new directory");
-
-                            //make directory with same name as zip file
-                            File newZipDir = new File(incomingFolder + File.separator + x.getName().substring(0, x.getName().length() - 4));
-                            if (newZipDir.exists()) {
-                                logger.error("Unable to unzip " + x.getName() + " since a folder with that name already exists");
-                            } else {
-                                //unzip files into newly created folder
-
-                                logger.info("Unzipping " + x.getName() + " into newly created folder " + newZipDir.getPath());
-
-                                ETDImport.unzip(x, newZipDir);
-                                //delete original
-
-                                logger.info("Deleting " + x.getName());
-
-                                //gChMod(x);
-                                System.gc();
-                                if (!x.delete()) {
-                                    logger.warn("warning; cannot delete " + x.getPath());
-                                }
-                            }
-                        } else {
-                            //file is one or more batches grouped together; unzip them all into drop box folder directly
-
-                            logger.info("Unzipping " + x.getName() + " into " + incomingFolder.getPath());
-
-                            ETDImport.unzip(x, incomingFolder);
-                            //delete original
-
-                            logger.info("Deleting " + x.getName());
-
-                            //gChMod(x);
-                            System.gc();
-                            if (!x.delete()) {
-                                logger.warn("warning; cannot delete " + x.getPath());
-                            }
-                        }
-                    } catch (Exception err) {
-                        //non-fatal exception; keep going
-                        logger.error("Error attempting to unzip file " + x.getName(), err);
-                    }
-                }
-            }
-            counter = counter + 1;
-        }
-    }
-
-
     private static void rejectBatch(File batch, File rejectFolder, boolean verbose) {
         try {
 
             logger.info("Batch " + batch.getName() + " not accepted: moving to reject folder");
 
-            copyFolder(batch, rejectFolder);
-            deleteDirectory(batch);
+            //the folder goes first: if it cannot be moved, the zip stays with it
+            File rejected = FileTrees.move(batch, rejectFolder);
+            ZipStager.moveOriginal(batch, unusedName(new File(rejectFolder, rejected.getName() + ".zip")));
         } catch (Exception err) {
             logger.error("Error moving " + batch.getName() + " to reject folder", err);
         }
     }
 
+    /**
+     * @return file, or if it exists the first of file.new, file.new.new, ... which does not
+     */
+    private static File unusedName(File file) {
+        while (file.exists()) {
+            file = new File(file.getPath() + ".new");
+        }
+        return file;
+    }
+
     private static void deleteDirectory(File path) {
-        if (path.exists()) {
-            File[] files = path.listFiles();
-            for (int i = 0; i < files.length; i++) {
-                if (files[i].isDirectory()) {
-                    deleteDirectory(files[i]);
-                } else {
-                    //gChMod(files[i]);
-                    System.gc();
-                    if (!files[i].delete()) {
-                        logger.warn("warning; cannot delete " + files[i].getPath());
-                    }
-                }
-            }
+        List<java.nio.file.Path> failed = FileTrees.delete(path.toPath());
+        if (!failed.isEmpty()) {
+            logger.error("Could not delete " + failed.size() + " files under " + path.getPath() + ", first " + failed.get(0));
         }
-        //gChMod(path);
-        System.gc();
-        if (!path.delete()) {
-            logger.warn("warning; cannot delete " + path.getPath());
+    }
+
+    /**
+     * Delete everything in the staging folder, on another thread if asked to
+     */
+    private static void clearStaging(File stagingFolder, boolean background) {
+        if (background) {
+            FileTrees.deleteInBackground(stagingFolder);
+        } else {
+            deleteDirectory(stagingFolder);
         }
+        stagingFolder.mkdirs();
     }
 
     /*
@@ -1286,256 +883,17 @@ public class ETDImport {
 
     }
 
-    private static void copyFolder(File folderToCopy, File newParent) throws IOException {
-        if (!folderToCopy.isDirectory()) {
-            throw new IOException("Source is not a directory");
-        }
-
-        if (!newParent.isDirectory()) {
-            throw new IOException("Destination is not a directory");
-        }
-        File copiedFolder = new File(newParent.getPath() + File.separator + folderToCopy.getName());
-        if (copiedFolder.exists()) {
-            throw new IOException("Destination file already exists");
-        }
-        if (!copiedFolder.mkdirs()) {
-            throw new IOException("Error creating destination folders");
-        }
-        int counter = 0;
-        logger.info("Copying " + folderToCopy.getPath() + " to " + newParent.getPath());
-        while (counter < folderToCopy.listFiles().length) {
-            File x = folderToCopy.listFiles()[counter];
-            if (x.isDirectory()) {
-                copyFolder(x, copiedFolder);
-            } else {
-                File newX = new File(copiedFolder.getPath() + File.separator + x.getName());
-                newX.createNewFile();
-                InputStream in = new FileInputStream(x);
-                OutputStream out = new FileOutputStream(newX);
-                byte[] buf = new byte[2048];
-                int len;
-                while ((len = in.read(buf)) > 0) {
-                    out.write(buf, 0, len);
-                }
-                in.close();
-                out.close();
-            }
-            counter = counter + 1;
-        }
-    }
-
-    private static void copyFolderContents(File folderToCopy, File newParent) throws IOException {
-        logger.debug("copyFolder from " + folderToCopy.getPath() + " to " + newParent.getPath());
-        if (!folderToCopy.isDirectory()) {
-            throw new IOException("Source is not a directory");
-        }
-        if (!newParent.isDirectory()) {
-            throw new IOException("Destination is not a directory");
-        }
-        int counter = 0;
-        while (counter < folderToCopy.listFiles().length) {
-            File x = folderToCopy.listFiles()[counter];
-            if (x.isDirectory()) {
-                copyFolder(x, newParent);
-            } else {
-                File newX = new File(newParent.getPath() + File.separator + x.getName());
-                logger.debug("copy file to  " + newX.getPath());
-                newX.createNewFile();
-                InputStream in = new FileInputStream(x);
-                OutputStream out = new FileOutputStream(newX);
-                byte[] buf = new byte[2048];
-                int len;
-                while ((len = in.read(buf)) > 0) {
-                    out.write(buf, 0, len);
-                }
-                in.close();
-                out.close();
-            }
-            counter = counter + 1;
-        }
-    }
-
-    private static void zip(File folderToZip, File zippedFolder) throws IOException {
-        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zippedFolder));
-        addDir(folderToZip, out);
-        out.close();
-    }
-
-    private static void addDir(File dirObj, ZipOutputStream out) throws IOException {
-        File[] files = dirObj.listFiles();
-        byte[] tmpBuf = new byte[1024];
-
-        for (int i = 0; i < files.length; i++) {
-            if (files[i].isDirectory()) {
-                addDir(files[i], out);
-                continue;
-            }
-            FileInputStream in = new FileInputStream(files[i].getAbsolutePath());
-            out.putNextEntry(new ZipEntry(files[i].getAbsolutePath()));
-            int len;
-            while ((len = in.read(tmpBuf)) > 0) {
-                out.write(tmpBuf, 0, len);
-            }
-            out.closeEntry();
-            in.close();
-        }
-    }
-
-    private static void unzip(File zippedFile, File locationForUnzip) throws IOException {
-        ZipFile zipFile = new ZipFile(zippedFile, ZipFile.OPEN_READ);
-        Enumeration zipFileEntries = zipFile.entries();
-        while (zipFileEntries.hasMoreElements()) {
-            ZipEntry entry = (ZipEntry) zipFileEntries.nextElement();
-            String currentEntry = entry.getName();
-            File destFile = new File(locationForUnzip, currentEntry);
-            File destinationParent = destFile.getParentFile();
-            destinationParent.mkdirs();
-            if (!entry.isDirectory()) {
-                BufferedInputStream is = new BufferedInputStream(zipFile.getInputStream(entry));
-                int currentByte;
-                byte data[] = new byte[2048];
-                FileOutputStream fos = new FileOutputStream(destFile);
-                BufferedOutputStream dest = new BufferedOutputStream(fos, 2048);
-                while ((currentByte = is.read(data, 0, 2048)) != -1) {
-                    dest.write(data, 0, currentByte);
-                }
-                dest.flush();
-                dest.close();
-                is.close();
-            }
-        }
-        zipFile.close();
-    }
-
-    private static String getExtension(String string) {
-        String extension = "";
-        int i = string.lastIndexOf('.');
-        if ((i > 0) && (i < string.length() - 1)) {
-            extension = string.substring(i + 1);
-        }
-        return extension;
-    }
-
-    private static void doTransform(String xslFile, String inputFile, String outputFile) throws Exception {
-        TransformerFactory tFactory = TransformerFactory.newInstance();
-        Transformer transformer = tFactory.newTransformer(new javax.xml.transform.stream.StreamSource(xslFile));
-        FileOutputStream of = new FileOutputStream(outputFile);
-        transformer.transform(new javax.xml.transform.stream.StreamSource(inputFile), new javax.xml.transform.stream.StreamResult(of));
-        of.close();
-    }
-
-    private static String getDepartmentName(File xmlfile) {
-        String deptName = null;
-
+    private static void archiveBatches(BatchArchiver archiver) {
         try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(xmlfile);
-
-            NodeList inst_contact = doc.getElementsByTagName("DISS_inst_contact");
-            deptName = inst_contact.item(0).getTextContent();
-        } catch (Exception e) {
-            logger.error("Trouble finding department name in xml file: " + xmlfile.getName(), e);
+            archiver.run();
+        } catch (InterruptedException err) {
+            logger.error("Interrupted while creating zip files", err);
         }
-
-        return deptName;
     }
 
-    private static String getEmbargoCode(File xmlfile) {
-        String embargoCode = null;
-
-        try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(xmlfile);
-
-            NodeList root_node = doc.getElementsByTagName("DISS_submission");
-            Node node = root_node.item(0);
-            if (node instanceof Element) {
-                Element el = (Element) node;
-                embargoCode = el.getAttribute("embargo_code");
-            }
-
-        } catch (Exception e) {
-            logger.error("Trouble finding embargo_code in xml file: " + xmlfile.getName(), e);
-        }
-
-        return embargoCode;
-    }
-
-    private static Date getEmbargoEnd(File xmlfile) {
-        String endDateString = null;
-        Date endDate = null;
-
-        try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(xmlfile);
-
-            NodeList root_node = doc.getElementsByTagName("DISS_sales_restriction");
-            Node node = root_node.item(0);
-            if (node instanceof Element) {
-                Element el = (Element) node;
-                endDateString = el.getAttribute("remove");
-                logger.info("Embargo endDate " + endDateString);
-            }
-            try {
-                DateFormat format = new SimpleDateFormat("MM/dd/yyyy", Locale.ENGLISH);
-                endDate = format.parse(endDateString);
-                logger.info("Embargo endDate (parsed)" + endDate);
-
-            } catch (ParseException e) {
-                logger.error("Can't parse embargo endDate " + endDateString, e);
-            }
-            return endDate;
-        } catch (Exception e) {
-            logger.error("Can't find embargo endDate in xml file: " + xmlfile.getName(), e);
-            return null;
-        }
-    }
-
-    /**
-     * Create the metadata_pu.xml file that contains the project grant number to charge
-     *
-     * @param batch The directory in which the file should be written
-     */
-    private static void createMetaDataPUFile(File batch, String projectgrantnumber) {
-        // Define the embargo lift dates if applicable
-        String embargo_fields = "";
-        File xmlfile = findXMLFileFor(batch);
-        String embargo_code = getEmbargoCode(xmlfile);
-        if (embargo_code != null) {
-            if (embargo_code.equals(PROQUEST_EMBARGO_CODE)) {
-                logger.debug("This item will be placed under embargo, embargo_code=" + embargo_code);
-                // lift embargo on date given in xmlfile
-                Date endDate = getEmbargoEnd(xmlfile);
-                SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-                String todaystr = sdf.format(endDate);
-                embargo_fields = "     <dcvalue element=\"embargo\" qualifier=\"terms\">" + todaystr + "</dcvalue>\n" +
-                        "     <dcvalue element=\"embargo\" qualifier=\"lift\">" + todaystr + "</dcvalue>\n";
-            } else if (!embargo_code.equals("0")) {
-                logger.error("Unexpected embargo code found: embargo_code = " + embargo_code);
-            }
-        }
-        String contents = "<?xml version=\"1.0\" encoding=\"utf-8\" standalone=\"no\"?>\n" +
-                "<dublin_core schema=\"pu\">\n" +
-                "     <dcvalue element=\"projectgrantnumber\" qualifier=\"none\">" + projectgrantnumber + "</dcvalue>\n" +
-                embargo_fields +
-                "</dublin_core>";
-
-        String filename = batch.getPath() + File.separator + "metadata_pu.xml";
-
-        try {
-            FileWriter fstream = new FileWriter(filename);
-            BufferedWriter out = new BufferedWriter(fstream);
-            out.write(contents);
-            out.close();
-        } catch (Exception e) {
-            logger.error("Problems creating file: " + filename, e);
-        }
-    }
-
-    private static String[] groupBatchesByDepartment(Vector<File> batches, HashMap<String, String> collections) {
+    private static String[] groupBatchesByDepartment(Vector<File> batches, HashMap<String, BatchMetadata> batchMetadata,
+                                                     HashMap<String, String> collections, FileTrees.Linking linking,
+                                                     Vector<File> rejects, File rejectFolder, boolean verbose) {
         HashSet<String> collection_ids = new HashSet<String>();
         //ArrayList<String> collection_ids = new ArrayList<String>();
 
@@ -1545,11 +903,26 @@ public class ETDImport {
         while (counter < batches.size()) {
             File batch = batches.get(counter);
 
+            // Rejected batches were never parsed
+            BatchMetadata metadata = batchMetadata.get(batch.getName());
+            if (metadata == null) {
+                logger.info("Not grouping rejected batch " + batch.getName());
+                counter = counter + 1;
+                continue;
+            }
             // Get the department name
-            File xmlfile = findXMLFileFor(batch);
-            String deptName = getDepartmentName(xmlfile);
+            String deptName = metadata.getDepartmentName();
             // Lookup the collectionID
             String collectionID = collections.get(deptName);
+            if (collectionID == null) {
+                // it would not be imported, and would then be archived and deleted with the others
+                logger.error("No collection for department " + deptName + " of batch " + batch.getName());
+                rejects.add(batch);
+                batchMetadata.remove(batch.getName());
+                rejectBatch(batch, rejectFolder, verbose);
+                counter = counter + 1;
+                continue;
+            }
             // Move the batch into a directory named after the collectionID
             // First look to see if the collection directory already exists
             // If newParent does not exist, then create it
@@ -1562,11 +935,13 @@ public class ETDImport {
                     collectionDir.mkdirs();
                 }
 
-                copyFolder(batch, collectionDir);
-
-                // Do not delete the original batch so that the clean and archive
-                //  functionality will continue to work.
-                //deleteDirectory(batch);
+                // Link rather than copy the files where the file system allows it; the original batch is
+                //  kept so that the clean and archive functionality will continue to work.
+                FileTrees.Linking used = FileTrees.link(batch.toPath(), collectionDir.toPath().resolve(batch.getName()), linking);
+                if (used != linking) {
+                    logger.warn("Grouping batches by " + used + " instead of " + linking);
+                    linking = used;
+                }
 
                 collection_ids.add(collectionID);
             } catch (IOException ioe) {
@@ -1578,7 +953,7 @@ public class ETDImport {
         return collection_ids.toArray(new String[0]);
     }
 
-    private static File openFile(String metadataTransformXSL, String dropBoxPath) throws FileNotFoundException {
+    static File openFile(String metadataTransformXSL, String dropBoxPath) throws FileNotFoundException {
         File file = null;
         String path = metadataTransformXSL;
         if (!metadataTransformXSL.startsWith(File.separator) && !metadataTransformXSL.startsWith(".")) {
@@ -1603,30 +978,62 @@ public class ETDImport {
     }
 
 
-    private static int executeCommand(String command, String[] args, Boolean dryRun) {
-        String cmdLine = command;
-        for (int i = 0; i < args.length; i++) {
-            cmdLine += " " + args[i];
+    /**
+     * @return the files which are in ready, or all of them if ready is null
+     */
+    private static List<File> select(List<File> files, Set<File> ready) {
+        if (ready == null) {
+            return files;
+        }
+        List<File> selected = new ArrayList<File>();
+        for (File f : files) {
+            if (ready.contains(f)) {
+                selected.add(f);
+            }
         }
-        logger.info("Running " + cmdLine);
+        return selected;
+    }
 
-        Process p;
-        try {
-            p = Runtime.getRuntime().exec(cmdLine);
-            p.waitFor();
-            BufferedReader reader =
-                    new BufferedReader(new InputStreamReader(p.getInputStream()));
+    private static String collectionFolder(File stagingFolder, String collectionID) {
+        return stagingFolder.getPath() + File.separator + "bydept" + File.separator + collectionID.replace(File.separatorChar, '_');
+    }
 
-            String line = "";
-            while ((line = reader.readLine()) != null) {
-                logger.info(command + ": " + line);
+    private static void removeMapfile(File mapfile) {
+        // remove mapfile in case it exists
+        if (mapfile.exists()) {
+            if (!mapfile.delete()) {
+                System.out.println("ERROR: Mapfile cannot be deleted!");
             }
+        }
+    }
 
-        } catch (Exception e) {
-            logger.info(command + "failed with Exception" + e);
-            e.printStackTrace();
-            return 1;
+    /**
+     * Run bin/dspace import on the batches of a collection once the runner has room for it
+     */
+    private static Future<Integer> submitImport(ProcessRunner runner, String dspaceHome, String eperson,
+                                                File stagingFolder, String collectionID) {
+        String collectionFolder = collectionFolder(stagingFolder, collectionID);
+        File mapfile = new File(collectionFolder + File.separator + "mapfile");
+        removeMapfile(mapfile);
+
+        //run item import on batches
+        List<String> command = Arrays.asList(dspaceHome + File.separator + "bin/dspace", "import",
+                "--add", "--eperson=" + eperson, "--collection=" + collectionID,
+                "--source=" + collectionFolder,
+                "--mapfile=" + mapfile.getPath());
+        return runner.submit(command, "import " + collectionID);
+    }
+
+    private static int waitFor(ProcessRunner runner, Future<Integer> command) {
+        try {
+            return command.get();
+        } catch (InterruptedException err) {
+            logger.fatal("Interrupted while importing", err);
+            runner.destroy();
+            System.exit(1);
+        } catch (ExecutionException err) {
+            logger.error("Error running import", err.getCause());
         }
-        return 0;
+        return 1;
     }
-}
\ No newline at end of file
+}
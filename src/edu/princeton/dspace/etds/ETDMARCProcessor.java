@@ -9,6 +9,7 @@ import org.marc4j.marc.DataField;
 import org.marc4j.marc.ControlField;
 import org.marc4j.marc.Subfield;
 import org.marc4j.marc.Record;
+import java.io.File;
 import java.io.InputStream;
 import java.io.FileInputStream;
 import java.io.OutputStream;
@@ -41,11 +42,13 @@ public class ETDMARCProcessor {
 	//  can be reused throughout this class
 	static MarcFactory factory = MarcFactory.newInstance();
 
+	// Default number of records between checkpoints
+	static final int CHECKPOINT_INTERVAL = 1000;
+
 	/* only looking at titles and alternate titles of items */
 	static final String titles_in_items = "(metadata_field_id=64 OR metadata_field_id=65) AND resource_type_id = 2";
 	static final String textval = "TEXT_VALUE LIKE ?";
 	static final String charReplacePattern = "[,:.;\" ]+";
-	static final String textval_upper = "UPPER(REGEXP_REPLACE(text_value, '[,:.;\" ]+', '')) LIKE  ?";
 	static final String in_community = " RESOURCE_ID in (SELECT ITEM_ID FROM COMMUNITY2ITEM WHERE COMMUNITY_ID = ?)";
 
 	static final String select = "SELECT resource_id,metadata_value_id,text_value FROM METADATAVALUE " +
@@ -53,79 +56,96 @@ public class ETDMARCProcessor {
 			"AND "  + in_community + " " +
 			"AND "  + textval + " ";
 
-	/* all table values are upper-regexp-ed if we do this
-		 static final String select_upper = "SELECT resource_id,metadata_value_id,text_value,resource_id FROM METADATAVALUE " +
-			"WHERE " + titles_in_items + " " +
-			"AND "  + in_community + " " +
-			"AND "  + textval_upper + " ";
-	*/
-
-	/*  just upper-regexp titles in given community
-		WITH M AS
-			( SELECT resource_id,metadata_value_id,text_value
-				FROM METADATAVALUE
-				WHERE (metadata_field_id=64 OR metadata_field_id=65) AND resource_type_id = 2
-				AND  RESOURCE_ID in (SELECT ITEM_ID FROM COMMUNITY2ITEM WHERE COMMUNITY_ID = 67)
-			) SELECT M.resource_id, M.metadata_value_id, M.text_value FROM M
-				WHERE UPPER(REGEXP_REPLACE(M.text_value, '[,:.;" ]+', '')) LIKE  'Characterization of polyester-rope suspended Footbridges';
+	/* upper case simplified titles are no longer matched with
+			UPPER(REGEXP_REPLACE(text_value, '[,:.;" ]+', '')) LIKE ?
+	   which no index can serve; the simplified titles of the community are computed once in Java by
+	   TitleKeyTable (see TitleNormalizer) and looked up in memory
 	 */
-	static final String select_upper = "WITH M AS ( " +
-				"SELECT resource_id,metadata_value_id,text_value FROM METADATAVALUE " +
-				"WHERE " + titles_in_items + " " +
-				"AND "  + in_community + " " +
-			") SELECT M.resource_id, M.metadata_value_id, M.text_value FROM M " +
-			" WHERE UPPER(REGEXP_REPLACE(M.text_value, '[,:.;\" ]+', '')) LIKE  ?" ;
+	static TitleKeyTable upperTitles = null;
 
 	static final String select_ark = "SELECT TEXT_VALUE FROM METADATAVALUE " +
 			"WHERE RESOURCE_TYPE_ID = 2 AND metadata_field_id  = 25 " +
 			"AND RESOURCE_ID = ? ";
 
 
-	private static String getArk(Connection db, String title, int  parentCommId) throws SQLException
+	static ArkMatch findArk(Connection db, String title, int  parentCommId) throws SQLException
 	{
 		String ark = null;
 
 		// try title
-	    int id = getIdForTitle(db, select, title, parentCommId);
+		List<TitleKeyTable.Row> rows = getRowsForTitle(db, select, title, parentCommId);
+		int kind = ArkMatch.EXACT;
+		TitleKeyTable.Row row = pickMatch(title, rows);
 		// try upper case simplified title
-		if (id == -1) {
-			String upper = title.replaceAll(charReplacePattern, "").toUpperCase();
-			id = getIdForTitle(db, select_upper, upper, parentCommId);
+		if (row == null) {
+			String upper = TitleNormalizer.normalize(title);
+			rows = getUpperTitles(db, parentCommId).get(upper);
+			kind = ArkMatch.NORMALIZED;
+			row = pickMatch(upper, rows);
 		}
-		// get ark if we found something
-		if (id != -1) {
-			PreparedStatement stmt = db.prepareStatement(select_ark);
-			stmt.setInt(1, id);
+		if (row == null) {
+			return null;
+		}
+		// get ark since we found something
+		PreparedStatement stmt = db.prepareStatement(select_ark);
+		try {
+			stmt.setInt(1, row.resourceId);
 			ResultSet matchIter = stmt.executeQuery();
 			if (matchIter.next()) {
 				ark = matchIter.getString("text_value");
 			}
+		} finally {
+			stmt.close();
+		}
+		return new ArkMatch(row.resourceId, row.metadataValueId, ark, kind, rows.size());
+	}
+
+	/**
+	 * @return the simplified titles of the community, loaded on first use
+	 */
+	private static synchronized TitleKeyTable getUpperTitles(Connection db, int parentCommId) throws SQLException {
+		if (upperTitles == null) {
+			upperTitles = TitleKeyTable.load(db, parentCommId);
 		}
-		return ark;
+		return upperTitles;
 	}
 
-	private static int getIdForTitle(Connection db,  String select, String title, int parentCommId) throws SQLException {
+	private static List<TitleKeyTable.Row> getRowsForTitle(Connection db,  String select, String title, int parentCommId) throws SQLException {
 		PreparedStatement stmt = db.prepareStatement(select);
-		stmt.setInt(1, parentCommId);
-		stmt.setString(2, title);
+		try {
+			stmt.setInt(1, parentCommId);
+			stmt.setString(2, title);
 
-		int id = -1;
-		ResultSet matchIter = stmt.executeQuery();
-		int n = 0;
-		while (matchIter.next()) {
-			n = n + 1;
-			id = matchIter.getInt("resource_id");
+			List<TitleKeyTable.Row> rows = null;
+			ResultSet matchIter = stmt.executeQuery();
+			while (matchIter.next()) {
+				if (rows == null) rows = new ArrayList<TitleKeyTable.Row>(1);
+				rows.add(new TitleKeyTable.Row(matchIter.getInt("resource_id"), matchIter.getInt("metadata_value_id")));
+			}
+			return rows;
+		} finally {
+			stmt.close();
+		}
+	}
 
+	/**
+	 * Log the values matching a title and pick the one to use
+	 *
+	 * @param rows  the matching values, or null if there are none
+	 * @return the last of the matching values, or null if there are none
+	 */
+	static TitleKeyTable.Row pickMatch(String title, List<TitleKeyTable.Row> rows) {
+		if (rows == null || rows.isEmpty()) {
+			RecordLog.info("no match for '{}'", title);
+			return null;
 		}
-		switch (n) {
-			case 0: log("no match for '" + title + "'", verbose);
-				break;
-			case 1: log("matched '" + title + "' to id " + id, verbose);
-				break;
-			default:
-				log("multiple matches for '" + title + "'", verbose);
+		TitleKeyTable.Row row = rows.get(rows.size() - 1);
+		if (rows.size() == 1) {
+			RecordLog.info("matched '{}' to id {}", title, row.resourceId);
+		} else {
+			RecordLog.always("multiple matches for '{}'", title);
 		}
-		return id;
+		return row;
 	}
 
 	public static void main(String args[]) throws Exception 
@@ -134,6 +154,7 @@ public class ETDMARCProcessor {
 		/*
 		 * Before reading the MARC file, be sure to remove Line Feeds from between records with this command:
 		 *     cat original_file | tr -d '\012' > new_file
+		 * or pass -m to have the records framed by their leader instead
 		 *     
 		 */
 		String dspaceHome = "/dspace";
@@ -154,7 +175,16 @@ public class ETDMARCProcessor {
         options.addOption("c", "config", true, "config file - default " + configFile);
 		options.addOption("d", "dspace_home", true, "full path of dspace_home directory, default " + dspaceHome);
 		options.addOption("h", "help", false, "help");
+		options.addOption("k", "ark_cache", true, "file caching the ARKs found in earlier runs");
+		options.addOption("m", "mapped", false, "memory-map the MARC file and frame records by their leader, " +
+				"skipping line feeds between records");
+		options.addOption("n", "checkpoint", true, "number of records between checkpoints, 0 for none, default " +
+				CHECKPOINT_INTERVAL);
+		options.addOption("p", "preload", false, "load all titles and ARKs of the community before processing");
+		options.addOption("r", "resume", false, "resume from the checkpoint of an earlier run with the same output file");
+		options.addOption("s", "sample", true, "only log one in N successful lookups; misses are always logged");
 		options.addOption("v", "verbose", false, "verbose");
+		options.addOption("w", "workers", true, "number of threads looking up and fixing records, default 1");
 
 		options.addOption(OptionBuilder.isRequired(true).hasArg(true)
 				.withDescription("MARC file to be processed")
@@ -165,7 +195,23 @@ public class ETDMARCProcessor {
 				.create("o"));
 		
 		HelpFormatter f = new HelpFormatter();
-		String usagestr = "java ETDMARCProcessor [-c config_file] [-d dspace_home] -i inputfile -o outputfile -h";
+		String usagestr = "java ETDMARCProcessor [-c config_file] [-d dspace_home] [-k ark_cache] [-m] [-n checkpoint_interval] [-p] [-r] [-s N] [-w workers] -i inputfile -o outputfile -h";
+
+		// Resolve titles against an in-memory index rather than querying per record
+		boolean preload = false;
+
+		// Frame records in a memory-mapped input file, which may have line feeds between records
+		boolean mapped = false;
+
+		// Persistent cache of the ARKs found in earlier runs
+		String cacheFile = null;
+
+		// Number of threads looking up and fixing records
+		int workers = 1;
+
+		// Number of records between checkpoints, and whether to resume from the last one
+		int checkpointInterval = CHECKPOINT_INTERVAL;
+		boolean resume = false;
 
 		// Extract the values of the options passed from the commandline
 		try 
@@ -176,6 +222,21 @@ public class ETDMARCProcessor {
 				System.exit(0);
 			}
 			verbose = line.hasOption('v');
+			preload = line.hasOption('p');
+			mapped = line.hasOption('m');
+			resume = line.hasOption('r');
+			if (line.hasOption('s')) {
+				RecordLog.setSampleEvery(Integer.parseInt(line.getOptionValue('s')));
+			}
+			if (line.hasOption('n')) {
+				checkpointInterval = Integer.parseInt(line.getOptionValue('n'));
+			}
+			if (line.hasOption('k')) {
+				cacheFile = line.getOptionValue('k');
+			}
+			if (line.hasOption('w')) {
+				workers = Integer.parseInt(line.getOptionValue('w'));
+			}
 			if (line.hasOption('d')) {
 				dspaceHome = line.getOptionValue('d');
 			}
@@ -200,16 +261,22 @@ public class ETDMARCProcessor {
 			System.exit(1);
 		}
 
-		InputStream in = null;
-		MarcReader reader = null;
+		PositionedMarcReader reader = null;
 
-		OutputStream out = null;
+		FileOutputStream out = null;
 		MarcWriter writer = null;
+		Checkpointer checkpointer = null;
+		RunReport report = null;
 
 		Connection dspace_conn = null;
+		ArkIndex arkIndex = null;
+		ArkCache arkCache = null;
 
 		Configuration config = new Configuration(configFile, dspaceHome);
 
+		// Write log and console lines on their own threads from here on
+		AsyncLogging.start();
+
         int parentCommunityID =  -1;
 
 		String commId = config.getParentCommunity();
@@ -230,7 +297,7 @@ AND RESOURCE_ID in (SELECT ITEM_ID FROM COMMUNITY2ITEM WHERE COMMUNITY_ID = 67);
 
 			if (verbose) {
 				System.out.println("select " + select);
-				System.out.println("select_upper " + select_upper);
+				System.out.println("select_titles " + TitleKeyTable.select_titles);
 				System.out.println("select_ark " + select_ark);
 				System.out.println("");
 
@@ -238,82 +305,83 @@ AND RESOURCE_ID in (SELECT ITEM_ID FROM COMMUNITY2ITEM WHERE COMMUNITY_ID = 67);
 
 			//stmt.setEscapeProcessing(true);
 
+			if (preload) {
+				log("Loading titles and ARKs for community " + parentCommunityID, verbose);
+				arkIndex = ArkIndex.load(dspace_conn, parentCommunityID);
+			}
+
+			File checkpointFile = Checkpoint.fileFor(outputfile);
+			Checkpoint start = null;
+			if (resume) {
+				start = Checkpoint.read(checkpointFile);
+				if (start == null) {
+					throw new IOException("no checkpoint to resume from in " + checkpointFile.getPath());
+				}
+				if (!new File(start.getInput()).getAbsolutePath().equals(new File(inputfile).getAbsolutePath())) {
+					throw new IOException("checkpoint " + checkpointFile.getPath() + " was taken for " + start.getInput());
+				}
+				logger.info("Resuming after record " + start.getRecordCount() + " at input offset " +
+						start.getInputOffset());
+			}
+
 			log("Reading MARC records from file: "+inputfile, verbose);
-			in = new FileInputStream(inputfile);
-			reader = new MarcStreamReader(in);
+			reader = new PositionedMarcReader(new File(inputfile), mapped, start != null ? start.getInputOffset() : 0);
 
 			log("Writing updated MARC records to file: "+outputfile, verbose);
-			out = new FileOutputStream(outputfile);
+			if (start != null) {
+				// Drop whatever was written after the checkpoint
+				out = new FileOutputStream(outputfile, true);
+				if (out.getChannel().size() < start.getOutputLength()) {
+					throw new IOException(outputfile + " is shorter than at the checkpoint");
+				}
+				out.getChannel().truncate(start.getOutputLength());
+			} else {
+				out = new FileOutputStream(outputfile);
+			}
 			writer = new MarcStreamWriter(out);
+			report = new RunReport(inputfile, outputfile, start);
+			checkpointer = new Checkpointer(checkpointFile, inputfile, out, checkpointInterval, start, report);
 
-			int recordnum = 0;
-			int numarksfound = 0;
+			if (cacheFile != null) {
+				log("Opening ARK cache " + cacheFile, verbose);
+				arkCache = ArkCache.open(new File(cacheFile), dspace_conn, parentCommunityID);
+			}
+
+			ArkResolver resolver = new ArkResolver(parentCommunityID, arkIndex, arkCache);
+			MarcFieldRules rules = MarcFieldRules.compile(config);
 
 			log("=== Processing started ===", verbose);
 
-			while (reader.hasNext()) 
+			if (workers > 1)
 			{
-				String ark = null;
-
-				logger.info("Processing record: " + ++recordnum);
-
-				Record record = reader.next();
-				//             logger.debug(record.toString());
-
-				// Get the title
-				String title = ETDMARCProcessor.getTitle(record);
-
-				// Replace double dash with single dash
-				title = title.replace("--", "-");
-				// Remove the period from the end of the title
-				title = title.substring(0, title.length()-1);
-
-				log("" + recordnum + ": Looking up ARK for title: " + title, verbose);
-
-				ark = getArk(dspace_conn, title, parentCommunityID);
-				if (ark  != null) {
-					log("ARK: " + ark + " " + title, verbose);
-					++numarksfound;
-				}
-				else
+				// Look up and fix records on several threads, each with its own connection
+				RecordPipeline pipeline = new RecordPipeline(config, resolver, rules, report, workers);
+				pipeline.run(reader, writer, checkpointer);
+			}
+			else
+			{
+				int recordnum = checkpointer.getRecordCount();
+				while (reader.hasNext()) 
 				{
-					ark = "NO_ARK_FOUND";
-					logerror("ARK: "+  "NO ARK FOR: " + title, verbose);
-				}
-
-				// Fix the 008 record
-				ETDMARCProcessor.fix008(record);
+					Record record = reader.next();
+					//             logger.debug(record.toString());
 
-				// Record the fact that we are modifying this record
-				ETDMARCProcessor.addProvenance(record);
+					boolean found = processRecord(record, ++recordnum, dspace_conn, resolver, rules, report);
 
-				// Remove undwanted 500 Adviser field
-				removeUnwanted500AdviserField(record);
+					writer.write(record);
+					report.written(recordnum);
+					checkpointer.recordWritten(reader.getPosition(), found);
 
-				// Remove unwanted fields
-				ETDMARCProcessor.removeUnwantedFields(record);
-
-				// Fix 790 field
-				ETDMARCProcessor.fix790s(record);
-
-				// Fix existing 856 field
-				ETDMARCProcessor.fix856(record);
-
-				// Fix department name
-				ETDMARCProcessor.fixDeptName(record, config.getCollectionOPACNameLookup());
-
-				// Add another 856 tag with the ARK URL
-				if (ark != null) ETDMARCProcessor.addElectronicLocation(record, ark);
-
-				writer.write(record);
-
-				// Process only the first record while in development
-				//				break;
-			}    
+					// Process only the first record while in development
+					//				break;
+				}
+			}
+			checkpointer.finish();
+			report.setComplete();
 
 			logger.info("=== Processing finished ===");
-			logger.info("   Records Processed: "+recordnum);
-			logger.info("   ARKs Found: "+numarksfound);
+			logger.info("   Records Processed: "+checkpointer.getRecordCount());
+			logger.info("   ARKs Found: "+checkpointer.getArksFound());
 
 		}
 		catch (SQLException sqle)
@@ -333,14 +401,84 @@ AND RESOURCE_ID in (SELECT ITEM_ID FROM COMMUNITY2ITEM WHERE COMMUNITY_ID = 67);
 			dspace_conn.close();
 
 
-			//reader.close();
-			in.close();
+			if (report != null) {
+				try {
+					report.write(RunReport.jsonFileFor(outputfile), RunReport.textFileFor(outputfile));
+				} catch (IOException e) {
+					logger.error("Cannot write report for " + outputfile, e);
+				}
+			}
+
+			if (reader != null) reader.close();
+			if (arkCache != null) arkCache.close();
+
+			if (writer != null) writer.close();
+			if (out != null) {
+				out.flush();
+				out.close();
+			}
+
+			AsyncLogging.stop();
+		}
+
+	}
 
-			writer.close();
-			out.flush();
-			out.close();
+	/**
+	 * Look up the ARK for a record and clean the record for the OPAC
+	 *
+	 * @param recordnum  position of the record in the input file, starting at 1
+	 * @param db  connection used for the lookup when the resolver needs one
+	 * @param resolver  finds the ARK for the title of the record
+	 * @param rules  the cleanup to apply to the record
+	 * @param report  notes how the ARK of the record was found, counted once the record is written; may be null
+	 * @return  true if an ARK was found for the record
+	 */
+	static boolean processRecord(Record record, int recordnum, Connection db, ArkResolver resolver,
+			MarcFieldRules rules, RunReport report) throws SQLException, IOException
+	{
+		String ark = null;
+		boolean found = false;
+
+		RecordLog.begin(recordnum);
+		if (RecordLog.isSampled() && logger.isInfoEnabled()) {
+			logger.info("Processing record: " + recordnum);
+		}
+
+		// Get the title
+		String title = ETDMARCProcessor.getTitle(record);
+
+		// Replace double dash with single dash
+		title = title.replace("--", "-");
+		// Remove the period from the end of the title
+		title = title.substring(0, title.length()-1);
+
+		RecordLog.info("{}: Looking up ARK for title: {}", recordnum, title);
+
+		ArkMatch match = resolver.resolve(db, title);
+		if (match != null) {
+			ark = match.getArk();
+		}
+		if (report != null) {
+			report.add(recordnum, title, match);
 		}
+		if (ark  != null) {
+			RecordLog.info("ARK: {} {}", ark, title);
+			found = true;
+		}
+		else
+		{
+			ark = "NO_ARK_FOUND";
+			RecordLog.error("ARK: NO ARK FOR: {}", title);
+		}
+
+		// Fix the 008 record, record the fact that we are modifying this record, remove unwanted
+		// fields, and fix the 790, 856 and department name fields
+		rules.apply(record);
 
+		// Add another 856 tag with the ARK URL
+		if (ark != null) ETDMARCProcessor.addElectronicLocation(record, ark);
+
+		return found;
 	}
 
 	/**
@@ -364,7 +502,9 @@ AND RESOURCE_ID in (SELECT ITEM_ID FROM COMMUNITY2ITEM WHERE COMMUNITY_ID = 67);
 		//    int nonSort = Character.digit(c, 10);
 		//    title = title.substring(nonSort);
 
-		logger.debug("Title: "+title);
+		if (logger.isDebugEnabled()) {
+			logger.debug("Title: "+title);
+		}
 
 		return title;
 	}
@@ -383,220 +523,101 @@ AND RESOURCE_ID in (SELECT ITEM_ID FROM COMMUNITY2ITEM WHERE COMMUNITY_ID = 67);
 	}
 
 	/**
-	 * Adjust provenance to show that Princeton has modified the record
+	 * Add Princeton as modifying agency to the given 040 field
 	 */
-	public static void addProvenance(Record record)
+	static void addProvenance(DataField df)
 	{
-		//MarcFactory factory = MarcFactory.newInstance();
-
-		DataField df = (DataField) record.getVariableField("040");
 		df.addSubfield(factory.newSubfield('d', "NjP"));
 	}
 
 	/**
-	 * Remove unwanted 500 field where a subfield is "Adviser"
+	 * Set positions 15=x, 16=x, and 17=[SPACE] of the given 008 field
 	 */
-	public static void removeUnwanted500AdviserField(Record record)
+	static void fix008(ControlField f)
 	{
-		DataField field;
-		Subfield subfield;
-		String subfielddata;
-
-		List<?> fields = (List<?>) record.getVariableFields("500");
+		logger.debug("Found 008 field!");
 
-		Iterator<?> iter = (Iterator<?>) fields.iterator();
+		String value = f.getData();
+		StringBuffer sb = new StringBuffer(value);
+		sb.setCharAt(15, 'x');
+		sb.setCharAt(16, 'x');
+		sb.setCharAt(17, ' ');
 
-		while (iter.hasNext()) 
-		{
-			field = (DataField) iter.next();
-
-			subfield = field.getSubfield('a');
-
-			subfielddata = subfield.getData();
-
-			if (subfielddata.startsWith("Adviser")) record.removeVariableField(field);
-		}
+		f.setData(sb.toString());
 	}
 
 	/**
-	 * Remove unwanted fields "590", "650", "690", "791", "792"
+	 * Turn the given 790 field into a 500 field
+	 *
+	 * @return false if the field only holds the school code and should be deleted instead
 	 */
-	public static void removeUnwantedFields(Record record)
-	{
-		String[] field_nums = {"590", "650", "690", "791", "792"};
-
-		DataField field;
-
-		for (int i=0; i<field_nums.length; i++)
-		{
-			List<?> fields = (List<?>) record.getVariableFields(field_nums[i]);
-
-			Iterator<?> iter = (Iterator<?>) fields.iterator();
-
-			while (iter.hasNext()) 
-			{
-				field = (DataField) iter.next();
-
-				if (field != null) record.removeVariableField(field);
-			}
-		}
-	}
-
-	/**
-	 * Fix 008 tag by setting positions 15=x, 16=x, and 17=[SPACE]
-	 * @param record
-	 */
-	public static void fix008(Record record)
-	{
-		boolean found008 = false;
-
-		List<?> fields = (List<?>) record.getControlFields();
-
-		Iterator<?> i = (Iterator<?>) fields.iterator();
-
-		while (i.hasNext()) 
-		{
-			ControlField f = (ControlField) i.next();
-
-			if (f.getTag().equals("008"))
-			{
-				logger.debug("Found 008 field!");
-				found008 = true;
-
-				String value = f.getData();
-				StringBuffer sb = new StringBuffer(value);
-				sb.setCharAt(15, 'x');
-				sb.setCharAt(16, 'x');
-				sb.setCharAt(17, ' ');
-
-				f.setData(sb.toString());
-
-				break;
-			}
-		}
-
-		if (!found008) logger.error("Did not fine 008 field!");
-	}
-
-	/**
-	 * Move 790 tags to 500
-	 */
-
-	public static void fix790s(Record record)
+	static boolean fix790(DataField field)
 	{
 		// The blank character that the second indicator will be set to
 		char blank = ' ';
-		DataField field;
 		Subfield subfielda, subfielde;
 		String adata, edata;
 
-		List<?> fields = (List<?>) record.getVariableFields("790");
+		subfielda = field.getSubfield('a');
 
-		Iterator<?> i = (Iterator<?>) fields.iterator();
-
-		while (i.hasNext()) 
+		if (subfielda != null)
 		{
-			field = (DataField) i.next();
-
-			subfielda = field.getSubfield('a');
+			adata = subfielda.getData();
 
-			if (subfielda != null)
+			// If subfield 'a' = 0181, then delete this field altogether
+			if (adata.equals("0181"))
 			{
-				adata = subfielda.getData();
+				return false;
+			}
 
-				// If subfield 'a' = 0181, then delete this field altogether
-				if (adata.equals("0181"))
-				{
-					record.removeVariableField(field);
-					continue;
-				}
+			// Otherwise, append subfield e to a and then delete e
+			else
+			{
+				subfielde = field.getSubfield('e');
 
-				// Otherwise, append subfield e to a and then delete e
-				else
+				if (subfielde != null)
 				{
-					subfielde = field.getSubfield('e');
+					edata = subfielde.getData();
 
-					if (subfielde != null)
+					// Combine e data with a data
+					if (!adata.endsWith(","))
 					{
-						edata = subfielde.getData();
-
-						// Combine e data with a data
-						if (!adata.endsWith(","))
-						{
-							subfielda.setData(adata + ", " + edata);
-						}
-						else
-						{
-							subfielda.setData(adata + " " + edata);
-						}
-
-						field.removeSubfield(subfielde);
+						subfielda.setData(adata + ", " + edata);
+					}
+					else
+					{
+						subfielda.setData(adata + " " + edata);
 					}
-				}
-			}
-
-			// Change the field to a 500 field and set the second indicator to blank
-			field.setTag("500");
-			field.setIndicator2(blank);
-
-			/* DELETE this old code after testing
-
-			// If there is only 1 subfield and it's value is "0181" then delete this field
-			List<?> subfields = (List<?>) field.getSubfields();
-
-			if (subfields.size() == 1)
-			{
-				Iterator<?> j = (Iterator<?>) subfields.iterator();
-				Subfield sf = (Subfield) j.next();
-
-				String value = sf.getData();
 
-				// If the field contains only the school code = 0181 then delete it
-				if (value.equals("0181")) 
-				{
-					record.removeVariableField(field);
-				}
-				// Otherwise, change the field to a "500" field and set the second indicator to blank
-				else
-				{
-					field.setTag("500");
-					field.setIndicator2(blank);
+					field.removeSubfield(subfielde);
 				}
 			}
-			// Otherwise, change the field to a "500" field and set the second indicator to blank
-			else
-			{
-				field.setTag("500");
-				field.setIndicator2(blank);
-			}
-		}
-			 */
 		}
+
+		// Change the field to a 500 field and set the second indicator to blank
+		field.setTag("500");
+		field.setIndicator2(blank);
+
+		return true;
 	}
 
 	/**
-	 * Set first and second indicators in the 856 field to "4" and "0" respectively
+	 * Set first and second indicators in the given 856 field to "4" and "0" respectively
 	 */
-
-	public static void fix856(Record record)
+	static void fix856(DataField df)
 	{
-		DataField df = (DataField) record.getVariableField("856");
-        if (df != null) {
-			df.setIndicator1('4');
-			df.setIndicator2('0');
-		}
+		df.setIndicator1('4');
+		df.setIndicator2('0');
 	}
 
 	/**
-	 * Translate Department name from ProQuest form to form appropriate for OPAC
+	 * Translate the department name in the given 710 field from ProQuest form to form appropriate for OPAC
 	 */
-
-	public static void fixDeptName(Record record, HashMap<String,String> proquest2opac_detpnames)
+	static void fixDeptName(DataField df, HashMap<String,String> proquest2opac_detpnames)
 	{
 		// The blank character that the second indicator will be set to
 		char blank = ' ';
 
-		DataField df = (DataField) record.getVariableField("710");
 		df.setIndicator2(blank);
 
 		Subfield b_subfield = df.getSubfield('b');
@@ -610,7 +631,9 @@ AND RESOURCE_ID in (SELECT ITEM_ID FROM COMMUNITY2ITEM WHERE COMMUNITY_ID = 67);
 
 		if (opacname != null)
 		{
-			logger.debug("Proquest name = "+proquestname+", OPAC name = "+opacname);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Proquest name = "+proquestname+", OPAC name = "+opacname);
+			}
 
 			if (opacname.equals("Woodrow Wilson School of Public and International Affairs"))
 			{
@@ -638,12 +661,12 @@ AND RESOURCE_ID in (SELECT ITEM_ID FROM COMMUNITY2ITEM WHERE COMMUNITY_ID = 67);
 	static void log(String s, Boolean verbose) {
 		logger.info(s);
 		if (verbose)
-			System.out.println(s);
+			AsyncLogging.println(s);
 	}
 
 	static void logerror(String s, Boolean verbose) {
 		logger.error(s);
 		if (verbose)
-			System.err.println(s);
+			AsyncLogging.printlnErr(s);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,285 @@
+package edu.princeton.dspace.etds;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Moving, copying and deleting the directory trees of batches in the drop box.
+ */
+public class FileTrees {
+
+    static Logger logger = Logger.getLogger(FileTrees.class);
+
+    // name prefix of trees waiting to be deleted in the background
+    static final String TRASH_PREFIX = ".deleting-";
+
+    // digest algorithm of the checksums which check a tree copied across file systems
+    private static final String CHECKSUM_ALGORITHM = "MD5";
+
+    private static volatile int copyThreads = 1;
+
+    /**
+     * How the files of a tree are reproduced by link(), from cheapest to dearest
+     */
+    public enum Linking {
+        HARD, SYMBOLIC, COPY
+    }
+
+    /**
+     * Move a directory into another one.  Within one file system this is a single atomic rename, whatever
+     * the size of the directory; across file systems the directory is copied, each copy is read back and
+     * checked against the checksum of the bytes written, and the original is deleted once they all match.
+     *
+     * @return the directory in its new location
+     */
+    public static File move(File dir, File newParent) throws IOException {
+        if (!dir.isDirectory()) {
+            throw new IOException("Source is not a directory");
+        }
+        if (!newParent.isDirectory()) {
+            throw new IOException("Destination is not a directory");
+        }
+        Path source = dir.toPath();
+        Path target = newParent.toPath().resolve(source.getFileName());
+        if (Files.exists(target)) {
+            throw new IOException("Destination file already exists");
+        }
+
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            logger.debug("Renamed " + source + " to " + target);
+        } catch (AtomicMoveNotSupportedException e) {
+            logger.info("Copying " + source + " to " + newParent.getPath() + ": " + e.getReason());
+            try {
+                copyAndVerify(source, target);
+            } catch (IOException copyError) {
+                // leave the original in place and no partial copy behind
+                report(target, delete(target));
+                throw copyError;
+            }
+            report(source, delete(source));
+        }
+        return target.toFile();
+    }
+
+    /**
+     * Copy a directory tree to target, which must not exist
+     */
+    public static void copy(Path source, Path target) throws IOException {
+        copier(copyThreads, null).copy(source, target);
+    }
+
+    /**
+     * Copy what is in the directory source into the directory target, replacing files already there.  The
+     * files are copied one at a time, as this is called from the threads which prepare batches.
+     */
+    public static void copyContents(File source, File target) throws IOException {
+        copier(1, null).copyContents(source.toPath(), target.toPath());
+    }
+
+    /**
+     * Copy a directory tree to target, which must not exist, and read every copy back to check it
+     *
+     * @throws IOException if a copy does not match its original
+     */
+    static void copyAndVerify(Path source, Path target) throws IOException {
+        Map<Path, String> checksums = copier(copyThreads, CHECKSUM_ALGORITHM).copy(source, target);
+        for (Map.Entry<Path, String> e : checksums.entrySet()) {
+            Path copy = target.resolve(e.getKey());
+            try {
+                if (!e.getValue().equals(TreeCopier.checksum(copy, CHECKSUM_ALGORITHM))) {
+                    throw new IOException("Checksum of " + copy + " does not match " + source.resolve(e.getKey()));
+                }
+            } catch (NoSuchAlgorithmException err) {
+                throw new IllegalStateException(err);
+            }
+        }
+        logger.debug("Checked " + checksums.size() + " files copied to " + target);
+    }
+
+    /**
+     * Copy the files of a tree moved across file systems on the given number of threads
+     */
+    public static void setCopyThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("number of threads must be positive: " + threads);
+        }
+        copyThreads = threads;
+    }
+
+    private static TreeCopier copier(int threads, String algorithm) {
+        try {
+            return new TreeCopier(threads, algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reproduce a directory tree at target, which must not exist, with new directories holding links to the
+     * original files.  Hard links are tried first if wanted; when the file system refuses them, for instance
+     * because target is on another device, symbolic links are tried, and when those are refused too the
+     * files are copied.  Once a kind of link has been refused it is not tried again for the rest of the tree.
+     *
+     * @param preferred the cheapest way to use
+     * @return the way the last file was reproduced
+     */
+    public static Linking link(final Path source, final Path target, Linking preferred) throws IOException {
+        if (Files.exists(target)) {
+            throw new IOException("Destination file already exists");
+        }
+        final Linking[] linking = {preferred};
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectory(target.resolve(source.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                linking[0] = linkFile(file, target.resolve(source.relativize(file)), linking[0]);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return linking[0];
+    }
+
+    private static Linking linkFile(Path file, Path link, Linking linking) throws IOException {
+        while (linking != Linking.COPY) {
+            try {
+                if (linking == Linking.HARD) {
+                    Files.createLink(link, file);
+                } else {
+                    Files.createSymbolicLink(link, file.toAbsolutePath());
+                }
+                return linking;
+            } catch (FileAlreadyExistsException e) {
+                throw e;
+            } catch (FileSystemException e) {
+                logger.info("Cannot create " + linking + " link " + link + ": " + e.getReason());
+            } catch (UnsupportedOperationException e) {
+                logger.info("Cannot create " + linking + " link " + link + ": not supported");
+            }
+            linking = Linking.values()[linking.ordinal() + 1];
+        }
+        Files.copy(file, link);
+        return linking;
+    }
+
+    /**
+     * Delete a file or directory tree, if it exists.  Deleting carries on past files which cannot be deleted.
+     *
+     * @return the files and directories which could not be deleted
+     */
+    public static List<Path> delete(Path dir) {
+        final List<Path> failed = new ArrayList<Path>();
+        if (!Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+            return failed;
+        }
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    tryDelete(file, failed);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    logger.warn("Cannot read " + file + ": " + e);
+                    failed.add(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult postVisitDirectory(Path d, IOException e) {
+                    tryDelete(d, failed);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            // not thrown by the visitor
+            failed.add(dir);
+        }
+        return failed;
+    }
+
+    private static void tryDelete(Path path, List<Path> failed) {
+        try {
+            Files.delete(path);
+        } catch (IOException e) {
+            logger.warn("warning; cannot delete " + path + ": " + e);
+            failed.add(path);
+        }
+    }
+
+    /**
+     * Delete a directory tree on another thread.  The tree is first renamed to a hidden name next to it, so
+     * that its name is free again as soon as this returns; if it cannot be renamed it is deleted right away.
+     *
+     * @return the thread deleting the tree, or null if it was deleted right away
+     */
+    public static Thread deleteInBackground(File dir) {
+        if (!dir.exists()) {
+            return null;
+        }
+        Path trash = dir.toPath().resolveSibling(TRASH_PREFIX + dir.getName() + "-" + System.currentTimeMillis());
+        try {
+            Files.move(dir.toPath(), trash, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.info("Cannot rename " + dir + " aside, deleting it now: " + e);
+            report(dir.toPath(), delete(dir.toPath()));
+            return null;
+        }
+        return deleteInBackground(trash);
+    }
+
+    /**
+     * Delete in the background the trees left next to dir by deleteInBackground() calls which did not finish,
+     * for instance because the program was stopped
+     */
+    public static void deleteLeftovers(File parent) {
+        File[] files = parent.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.getName().startsWith(TRASH_PREFIX)) {
+                deleteInBackground(f.toPath());
+            }
+        }
+    }
+
+    private static Thread deleteInBackground(final Path trash) {
+        Thread t = new Thread("delete " + trash.getFileName()) {
+            public void run() {
+                long start = System.currentTimeMillis();
+                report(trash, delete(trash));
+                logger.info("Deleted " + trash + " in " + (System.currentTimeMillis() - start) + " ms");
+            }
+        };
+        // the program waits for the deletion before it exits
+        t.setDaemon(false);
+        t.start();
+        return t;
+    }
+
+    private static void report(Path dir, List<Path> failed) {
+        if (!failed.isEmpty()) {
+            logger.error("Could not delete " + failed.size() + " files under " + dir + ", first " + failed.get(0));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package edu.princeton.dspace.etds;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.marc4j.MarcException;
+import org.marc4j.MarcReader;
+import org.marc4j.MarcStreamReader;
+import org.marc4j.marc.Record;
+
+/**
+ * MarcReader reading the records framed by MarcRecordFramer.  Each record is handed to a single
+ * MarcStreamReader through a stream that ends with the record, so line feeds between records never reach
+ * marc4j.
+ */
+public class FramedMarcReader implements MarcReader {
+
+    private final MarcRecordFramer framer;
+    private final RecordStream stream = new RecordStream();
+    private final MarcStreamReader reader = new MarcStreamReader(stream);
+
+    public FramedMarcReader(File file) throws IOException {
+        this.framer = new MarcRecordFramer(file);
+    }
+
+    public boolean hasNext() {
+        try {
+            return framer.hasNext();
+        } catch (IOException e) {
+            throw new MarcException("error reading MARC records", e);
+        }
+    }
+
+    public Record next() {
+        try {
+            stream.record = framer.next();
+        } catch (IOException e) {
+            throw new MarcException("error reading MARC records", e);
+        }
+        return reader.next();
+    }
+
+    /**
+     * @return the framer, which knows the offsets of the records read so far
+     */
+    public MarcRecordFramer getFramer() {
+        return framer;
+    }
+
+    public void close() throws IOException {
+        framer.close();
+    }
+
+    /**
+     * Stream over the bytes of the current record
+     */
+    private static class RecordStream extends InputStream {
+        ByteBuffer record = ByteBuffer.allocate(0);
+
+        public int read() {
+            return record.hasRemaining() ? (record.get() & 0xFF) : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (!record.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, record.remaining());
+            record.get(b, off, n);
+            return n;
+        }
+
+        public int available() {
+            return record.remaining();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package edu.princeton.dspace.etds;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.dspace.content.Collection;
+import org.dspace.content.DSpaceObject;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.eperson.EPerson;
+import org.dspace.handle.HandleManager;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs DSpace's ItemImport in this JVM, which has already loaded dspace.cfg, instead of starting
+ * "bin/dspace import" for every collection.  The DSpace kernel is started once; one Context is used for all
+ * the collections of a run and committed after each of them, as the command would, and close() ends it while
+ * the kernel keeps running for the next run.
+ *
+ * ItemImport.addItems() is not part of a stable API and is looked up by reflection, so that a DSpace
+ * installation without it makes open() return null and the caller can run the command instead.
+ */
+public class InProcessImporter {
+
+    static Logger logger = Logger.getLogger(InProcessImporter.class);
+
+    private static final String ITEM_IMPORT_CLASS = "org.dspace.app.itemimport.ItemImport";
+    private static final String KERNEL_INIT_CLASS = "org.dspace.servicemanager.DSpaceKernelInit";
+
+    private final String epersonID;
+    private final Object loader;
+    private final Method addItems;
+    private Context context;
+
+    private InProcessImporter(String epersonID, Object loader, Method addItems) {
+        this.epersonID = epersonID;
+        this.loader = loader;
+        this.addItems = addItems;
+    }
+
+    /**
+     * Get ready to import items as the given eperson, given by email address or ID
+     *
+     * @return the importer, or null if ItemImport cannot be run in this JVM
+     */
+    public static InProcessImporter open(String dspaceHome, String epersonID) {
+        long start = System.currentTimeMillis();
+        InProcessImporter importer;
+        try {
+            Class<?> itemImport = Class.forName(ITEM_IMPORT_CLASS);
+            Method addItems = itemImport.getDeclaredMethod("addItems", Context.class, Collection[].class,
+                    String.class, String.class, boolean.class);
+            addItems.setAccessible(true);
+            importer = new InProcessImporter(epersonID, itemImport.getDeclaredConstructor().newInstance(), addItems);
+            startKernel(dspaceHome);
+            importer.newContext();
+        } catch (Throwable t) {
+            logger.warn("Cannot run ItemImport in this JVM, running " + dspaceHome + "/bin/dspace import instead: " + t);
+            return null;
+        }
+        logger.info("Started DSpace for ItemImport in " + (System.currentTimeMillis() - start) + " ms");
+        return importer;
+    }
+
+    /**
+     * Import the items in sourceDir into a collection, given by handle or ID, as "dspace import --add" does
+     *
+     * @return 0 if the items were imported, 1 if they were not
+     */
+    public int importItems(String collectionID, String sourceDir, String mapfile) {
+        long start = System.currentTimeMillis();
+        logger.info("Importing " + sourceDir + " into collection " + collectionID);
+        try {
+            if (context == null) {
+                newContext();
+            }
+            Collection collection = findCollection(collectionID);
+            addItems.invoke(loader, context, new Collection[]{collection}, sourceDir, mapfile, false);
+            context.commit();
+        } catch (Throwable t) {
+            if (t instanceof InvocationTargetException) {
+                t = t.getCause();
+            }
+            logger.error("ItemImport failed for collection " + collectionID, t);
+            // nothing of the collection is kept, and the next one starts afresh
+            if (context != null) {
+                context.abort();
+                context = null;
+            }
+            return 1;
+        }
+        logger.info("Imported " + sourceDir + " in " + (System.currentTimeMillis() - start) + " ms");
+        return 0;
+    }
+
+    /**
+     * Close the DSpace context; the next import opens a new one
+     */
+    public void close() {
+        if (context == null || !context.isValid()) {
+            context = null;
+            return;
+        }
+        try {
+            context.complete();
+        } catch (Exception err) {
+            logger.error("Error closing DSpace context", err);
+            context.abort();
+        }
+        context = null;
+    }
+
+    private void newContext() throws Exception {
+        context = new Context();
+        EPerson eperson = epersonID.indexOf('@') != -1
+                ? EPerson.findByEmail(context, epersonID)
+                : EPerson.find(context, Integer.parseInt(epersonID));
+        if (eperson == null) {
+            context.abort();
+            throw new IllegalArgumentException("unknown eperson " + epersonID);
+        }
+        context.setCurrentUser(eperson);
+        // as the command does, the eperson is not checked against the collection policies
+        context.turnOffAuthorisationSystem();
+    }
+
+    private Collection findCollection(String collectionID) throws Exception {
+        DSpaceObject dso = collectionID.indexOf('/') != -1
+                ? HandleManager.resolveToObject(context, collectionID)
+                : Collection.find(context, Integer.parseInt(collectionID));
+        if (dso == null || dso.getType() != Constants.COLLECTION) {
+            throw new IllegalArgumentException(collectionID + " is not a collection");
+        }
+        return (Collection) dso;
+    }
+
+    /**
+     * Start the DSpace kernel, as bin/dspace does before running a command, unless it is already running
+     */
+    private static void startKernel(String dspaceHome) throws Exception {
+        Object kernel = Class.forName(KERNEL_INIT_CLASS).getMethod("getKernel", String.class)
+                .invoke(null, (Object) null);
+        if (!(Boolean) kernel.getClass().getMethod("isRunning").invoke(kernel)) {
+            kernel.getClass().getMethod("start", String.class).invoke(kernel, dspaceHome);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package edu.princeton.dspace.etds;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The master mapfile in the holding folder, with an in-memory index from item folder name to handle.
+ *
+ * The mapfile itself stays a text file of "folder handle" lines, as ItemImport writes them.  Next to it,
+ * mapfile.snap holds the index in binary form together with the length and modification time of the
+ * mapfile it was written for, so that at startup the mapfile is not parsed at all.  If the mapfile has
+ * another length or modification time, for instance because it was edited by hand, the snapshot is ignored
+ * and the whole mapfile is read.
+ *
+ * New lines are buffered by add() and written by commit() with a single write and a single fsync, so a
+ * whole import is made durable at once.  Commits only append to the mapfile; close() writes a new snapshot
+ * if the mapfile was read or changed since the last one, so a run which stops before close() leaves the
+ * next run a full read.
+ */
+public class MapfileStore {
+
+    static Logger logger = Logger.getLogger(MapfileStore.class);
+
+    private static final int SNAPSHOT_MAGIC = 0x4d415046; // "MAPF"
+    private static final int SNAPSHOT_VERSION = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File mapfile;
+    private final File snapshot;
+
+    private final HashMap<String, String> handles = new HashMap<String, String>();
+
+    // length of the mapfile covered by the index
+    private long length = 0;
+    // whether the snapshot on disk matches the mapfile and the index
+    private boolean snapshotCurrent = false;
+
+    private final List<String> pending = new ArrayList<String>();
+
+    private MapfileStore(File mapfile) {
+        this.mapfile = mapfile;
+        this.snapshot = new File(mapfile.getPath() + ".snap");
+    }
+
+    /**
+     * Load the mapfile, creating it if it does not exist
+     */
+    public static MapfileStore open(File mapfile) throws IOException {
+        MapfileStore store = new MapfileStore(mapfile);
+        if (!mapfile.exists()) {
+            logger.info("Master mapfile does not exist; creating it");
+            mapfile.createNewFile();
+        }
+        long start = System.currentTimeMillis();
+        String from;
+        if (store.readSnapshot()) {
+            from = "snapshot";
+        } else {
+            from = store.readLines() + " lines";
+        }
+        logger.info("Read " + store.handles.size() + " mappings from " + mapfile.getPath() + " (" + from +
+                ") in " + (System.currentTimeMillis() - start) + " ms");
+        return store;
+    }
+
+    /**
+     * @return true if an item was imported from a folder with the given name
+     */
+    public boolean contains(String folder) {
+        return handles.containsKey(folder);
+    }
+
+    /**
+     * @return the handle of the item imported from a folder with the given name, or null if there is none
+     */
+    public String getHandle(String folder) {
+        return handles.get(folder);
+    }
+
+    /**
+     * @return the number of folders in the mapfile
+     */
+    public int size() {
+        return handles.size();
+    }
+
+    /**
+     * Add a "folder handle" line to the mapfile; it is written by the next commit()
+     */
+    public void add(String line) {
+        pending.add(line);
+        index(line);
+    }
+
+    /**
+     * Append the lines added since the last commit to the mapfile and force them to disk
+     */
+    public void commit() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String line : pending) {
+            sb.append(line).append('\n');
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(sb.toString().getBytes(UTF8));
+        FileChannel channel = FileChannel.open(mapfile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(true);
+            length = channel.size();
+        } finally {
+            channel.close();
+        }
+        pending.clear();
+        snapshotCurrent = false;
+    }
+
+    /**
+     * Commit, and write a new snapshot unless the one on disk still matches
+     */
+    public void close() throws IOException {
+        commit();
+        if (!snapshotCurrent) {
+            writeSnapshot();
+        }
+    }
+
+    private void index(String line) {
+        if (!(line.trim().equals(""))) {
+            String[] xx = line.split(" ");
+            if (xx.length > 1) {
+                handles.put(xx[0], xx[1]);
+            }
+        }
+    }
+
+    /**
+     * Parse the whole mapfile
+     *
+     * @return the number of lines read
+     */
+    private int readLines() throws IOException {
+        InputStream in = new FileInputStream(mapfile);
+        int lines = 0;
+        try {
+            BufferedReader br = new BufferedReader(new InputStreamReader(in, UTF8), 65536);
+            String s;
+            while ((s = br.readLine()) != null) {
+                index(s);
+                lines++;
+            }
+        } finally {
+            in.close();
+        }
+        length = mapfile.length();
+        return lines;
+    }
+
+    /**
+     * Load the index from the snapshot, if there is one which matches the mapfile
+     *
+     * @return true if the snapshot was loaded
+     */
+    private boolean readSnapshot() {
+        if (!snapshot.exists()) {
+            return false;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 65536));
+            try {
+                if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                    logger.warn("Ignoring " + snapshot.getPath() + ": not a mapfile snapshot");
+                    return false;
+                }
+                long covered = in.readLong();
+                long modified = in.readLong();
+                if (covered != mapfile.length() || modified != mapfile.lastModified()) {
+                    logger.warn("Ignoring " + snapshot.getPath() + ": " + mapfile.getPath() +
+                            " has changed since it was written");
+                    return false;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String folder = in.readUTF();
+                    handles.put(folder, in.readUTF());
+                }
+                length = covered;
+                snapshotCurrent = true;
+                return true;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Ignoring " + snapshot.getPath() + ": " + e.getMessage());
+            handles.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Replace the snapshot with one of the current index
+     */
+    private void writeSnapshot() throws IOException {
+        File tmp = new File(snapshot.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(length);
+            out.writeLong(mapfile.lastModified());
+            out.writeInt(handles.size());
+            for (Map.Entry<String, String> e : handles.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeUTF(e.getValue());
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        snapshotCurrent = true;
+    }
+}
@@ -0,0 +1,202 @@
+package edu.princeton.dspace.etds;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.marc4j.marc.ControlField;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
+import org.marc4j.marc.Subfield;
+import org.marc4j.marc.VariableField;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The cleanup applied by ETDMARCProcessor to each record, compiled into a table of rules keyed by field
+ * tag.  A record is fixed in a single pass over its fields: each field is handed to the rule registered
+ * for its tag, which changes it in place or asks for it to be removed.
+ *
+ * The fields to remove are read from the &lt;marcRemoveField&gt; elements of config.xml, so removing
+ * another tag does not add another pass over the record.
+ */
+public class MarcFieldRules {
+
+    static Logger logger = Logger.getLogger(MarcFieldRules.class);
+
+    /**
+     * Fields removed when config.xml does not list any: the tag and the text subfield 'a' must start with
+     * for the field to be removed, or null to remove every field with the tag
+     */
+    static final LinkedHashMap<String, String> DEFAULT_REMOVED_FIELDS = new LinkedHashMap<String, String>();
+
+    static {
+        DEFAULT_REMOVED_FIELDS.put("500", "Adviser");
+        DEFAULT_REMOVED_FIELDS.put("590", null);
+        DEFAULT_REMOVED_FIELDS.put("650", null);
+        DEFAULT_REMOVED_FIELDS.put("690", null);
+        DEFAULT_REMOVED_FIELDS.put("791", null);
+        DEFAULT_REMOVED_FIELDS.put("792", null);
+    }
+
+    /**
+     * A change to the fields with one tag
+     */
+    static abstract class FieldRule {
+        // position of the rule in the table, used to track which rules have been applied to a record
+        int index;
+
+        // the rule only applies to the first field with its tag
+        final boolean firstOnly;
+
+        // the record is expected to hold a field with the tag
+        final boolean required;
+
+        FieldRule(boolean firstOnly, boolean required) {
+            this.firstOnly = firstOnly;
+            this.required = required;
+        }
+
+        /**
+         * @return false if the field should be removed from the record
+         */
+        abstract boolean apply(VariableField field);
+    }
+
+    /**
+     * Removes the fields whose subfield 'a' starts with a given text, or all fields if there is no text
+     */
+    static class RemoveRule extends FieldRule {
+        final String prefix;
+
+        RemoveRule(String prefix) {
+            super(false, false);
+            this.prefix = prefix;
+        }
+
+        boolean apply(VariableField field) {
+            if (prefix == null) {
+                return false;
+            }
+            if (!(field instanceof DataField)) {
+                // a control field has no subfield 'a' to match
+                return true;
+            }
+            Subfield a = ((DataField) field).getSubfield('a');
+            return a == null || !a.getData().startsWith(prefix);
+        }
+    }
+
+    private final HashMap<String, FieldRule> rules = new HashMap<String, FieldRule>();
+
+    // tag of each rule, by index
+    private String[] tags = new String[0];
+
+    /**
+     * Compile the rules for the given configuration
+     */
+    public static MarcFieldRules compile(Configuration config) {
+        Map<String, String> removed = config.getMarcRemoveFields();
+        if (removed.isEmpty()) {
+            removed = DEFAULT_REMOVED_FIELDS;
+        }
+        return compile(removed, config.getCollectionOPACNameLookup());
+    }
+
+    /**
+     * Compile the rules
+     *
+     * @param removed  tags of the fields to remove, mapped to the text subfield 'a' must start with, or null
+     * @param proquest2opac_deptnames  department names used by ProQuest mapped to those used by the OPAC
+     */
+    public static MarcFieldRules compile(Map<String, String> removed, final HashMap<String, String> proquest2opac_deptnames) {
+        MarcFieldRules table = new MarcFieldRules();
+
+        // Fix the 008 record
+        table.add("008", new FieldRule(true, true) {
+            boolean apply(VariableField field) {
+                ETDMARCProcessor.fix008((ControlField) field);
+                return true;
+            }
+        });
+
+        // Record the fact that we are modifying this record
+        table.add("040", new FieldRule(true, true) {
+            boolean apply(VariableField field) {
+                ETDMARCProcessor.addProvenance((DataField) field);
+                return true;
+            }
+        });
+
+        // Fix 790 fields; they become 500 fields, which are not seen by the 500 rule of this pass
+        table.add("790", new FieldRule(false, false) {
+            boolean apply(VariableField field) {
+                return ETDMARCProcessor.fix790((DataField) field);
+            }
+        });
+
+        // Fix existing 856 field
+        table.add("856", new FieldRule(true, false) {
+            boolean apply(VariableField field) {
+                ETDMARCProcessor.fix856((DataField) field);
+                return true;
+            }
+        });
+
+        // Fix department name
+        table.add("710", new FieldRule(true, true) {
+            boolean apply(VariableField field) {
+                ETDMARCProcessor.fixDeptName((DataField) field, proquest2opac_deptnames);
+                return true;
+            }
+        });
+
+        // Remove unwanted fields; removal takes precedence over any other rule for the tag
+        for (Map.Entry<String, String> entry : removed.entrySet()) {
+            table.add(entry.getKey(), new RemoveRule(entry.getValue()));
+        }
+
+        logger.debug("Compiled MARC field rules for tags " + table.rules.keySet());
+        return table;
+    }
+
+    private void add(String tag, FieldRule rule) {
+        FieldRule old = rules.put(tag, rule);
+        if (old != null) {
+            rule.index = old.index;
+        } else {
+            rule.index = tags.length;
+            String[] more = new String[tags.length + 1];
+            System.arraycopy(tags, 0, more, 0, tags.length);
+            tags = more;
+        }
+        tags[rule.index] = tag;
+    }
+
+    /**
+     * Apply the rules to all fields of the record
+     */
+    public void apply(Record record) {
+        boolean[] applied = new boolean[tags.length];
+
+        List<?> fields = (List<?>) record.getVariableFields();
+        for (int i = 0; i < fields.size(); i++) {
+            VariableField field = (VariableField) fields.get(i);
+            FieldRule rule = rules.get(field.getTag());
+            if (rule == null || (rule.firstOnly && applied[rule.index])) {
+                continue;
+            }
+            applied[rule.index] = true;
+            if (!rule.apply(field)) {
+                record.removeVariableField(field);
+            }
+        }
+
+        for (int i = 0; i < tags.length; i++) {
+            if (!applied[i] && rules.get(tags[i]).required) {
+                logger.error("Did not find " + tags[i] + " field!");
+            }
+        }
+    }
+}
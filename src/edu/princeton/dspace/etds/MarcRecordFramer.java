@@ -0,0 +1,176 @@
+package edu.princeton.dspace.etds;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.marc4j.MarcException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Splits a binary MARC file into records by memory-mapping it and reading the record length from each
+ * leader.  Line feeds and carriage returns between records, as found in the files delivered by ProQuest,
+ * are skipped, so the file does not have to be run through "tr -d '\012'" first.
+ *
+ * The offset and length of each record in the file are available after it has been framed, so the framer
+ * may also be used to split a file or to resume reading at a known record.
+ */
+public class MarcRecordFramer {
+
+    static Logger logger = Logger.getLogger(MarcRecordFramer.class);
+
+    // Size of the leader field holding the record length
+    private static final int RECORD_LENGTH_DIGITS = 5;
+
+    private static final byte RECORD_TERMINATOR = 0x1D;
+
+    // Largest part of the file mapped at once; records never exceed 99999 bytes
+    private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long size;
+
+    private MappedByteBuffer window = null;
+    private long windowStart = 0;
+
+    // Offset of the next byte to examine
+    private long position = 0;
+
+    private long recordOffset = -1;
+    private int recordLength = 0;
+
+    public MarcRecordFramer(File file) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "r");
+        this.channel = raf.getChannel();
+        this.size = channel.size();
+    }
+
+    /**
+     * @return true if there is another record, skipping any line feeds before it
+     */
+    public boolean hasNext() throws IOException {
+        while (position < size && isSeparator(byteAt(position))) {
+            position = position + 1;
+        }
+        if (position >= size) {
+            return false;
+        }
+        if (size - position < RECORD_LENGTH_DIGITS) {
+            logger.warn(file.getName() + ": ignoring " + (size - position) + " trailing bytes at offset " + position);
+            position = size;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Frame the next record
+     *
+     * @return the bytes of the record, including its leader and terminator
+     * @throws MarcException if the leader does not start with a record length or the record is truncated
+     */
+    public ByteBuffer next() throws IOException {
+        if (!hasNext()) {
+            throw new MarcException("no more records in " + file.getName());
+        }
+        int length = 0;
+        for (int i = 0; i < RECORD_LENGTH_DIGITS; i++) {
+            byte b = byteAt(position + i);
+            if (b < '0' || b > '9') {
+                throw new MarcException("invalid record length in leader at offset " + position + " of " + file.getName());
+            }
+            length = length * 10 + (b - '0');
+        }
+        if (length <= RECORD_LENGTH_DIGITS || position + length > size) {
+            throw new MarcException("record at offset " + position + " of " + file.getName() + " has bad length " + length);
+        }
+        ByteBuffer record = slice(position, length);
+        if (record.get(length - 1) != RECORD_TERMINATOR) {
+            logger.warn(file.getName() + ": record at offset " + position + " does not end with a record terminator");
+        }
+        recordOffset = position;
+        recordLength = length;
+        position = position + length;
+        return record;
+    }
+
+    /**
+     * @return the offset in the file of the record last returned by next()
+     */
+    public long getRecordOffset() {
+        return recordOffset;
+    }
+
+    /**
+     * @return the length of the record last returned by next()
+     */
+    public int getRecordLength() {
+        return recordLength;
+    }
+
+    /**
+     * @return the offset in the file just past the record last returned by next()
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Continue framing at the given offset, which must be the start of a record or of the line feeds
+     * preceding one
+     */
+    public void seek(long offset) {
+        if (offset < 0 || offset > size) {
+            throw new IllegalArgumentException("offset " + offset + " outside of " + file.getName());
+        }
+        position = offset;
+    }
+
+    /**
+     * @return the size of the file in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+        raf.close();
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    private byte byteAt(long offset) throws IOException {
+        map(offset, 1);
+        return window.get((int) (offset - windowStart));
+    }
+
+    private ByteBuffer slice(long offset, int length) throws IOException {
+        map(offset, length);
+        ByteBuffer dup = window.duplicate();
+        dup.position((int) (offset - windowStart));
+        dup.limit((int) (offset - windowStart) + length);
+        return dup.slice();
+    }
+
+    /**
+     * Make sure the mapped window covers the given range of the file
+     */
+    private void map(long offset, int length) throws IOException {
+        if (window != null && offset >= windowStart && offset + length <= windowStart + window.limit()) {
+            return;
+        }
+        windowStart = offset;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, size - windowStart));
+    }
+}
@@ -0,0 +1,79 @@
+package edu.princeton.dspace.etds;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.marc4j.MarcReader;
+import org.marc4j.MarcStreamReader;
+import org.marc4j.marc.Record;
+
+/**
+ * MarcReader over a MARC file which knows the offset in the file just past the last record read, so that a
+ * run can be checkpointed and later resumed at a record boundary.
+ *
+ * MarcStreamReader buffers its input, so the offset cannot be taken from the stream.  Without framing it is
+ * the sum of the record lengths in the leaders, which MarcStreamReader reads exactly; with framing it is
+ * the position of the MarcRecordFramer, which also accounts for line feeds between records.
+ */
+public class PositionedMarcReader implements MarcReader {
+
+    private final FileInputStream in;
+    private final FramedMarcReader framedReader;
+    private final MarcReader reader;
+
+    private long position;
+
+    /**
+     * @param file    the MARC file
+     * @param mapped  memory-map the file and frame records by their leader
+     * @param offset  offset of the first record to read, normally 0 or the input offset of a checkpoint
+     */
+    public PositionedMarcReader(File file, boolean mapped, long offset) throws IOException {
+        if (offset < 0 || offset > file.length()) {
+            throw new IOException("offset " + offset + " outside of " + file.getPath());
+        }
+        if (mapped) {
+            in = null;
+            framedReader = new FramedMarcReader(file);
+            framedReader.getFramer().seek(offset);
+            reader = framedReader;
+        } else {
+            in = new FileInputStream(file);
+            in.getChannel().position(offset);
+            framedReader = null;
+            reader = new MarcStreamReader(in);
+        }
+        position = offset;
+    }
+
+    public boolean hasNext() {
+        return reader.hasNext();
+    }
+
+    public Record next() {
+        Record record = reader.next();
+        if (framedReader != null) {
+            position = framedReader.getFramer().getPosition();
+        } else {
+            position = position + record.getLeader().getRecordLength();
+        }
+        return record;
+    }
+
+    /**
+     * @return the offset in the file just past the record last returned by next()
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+        }
+        if (framedReader != null) {
+            framedReader.close();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package edu.princeton.dspace.etds;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs external commands, such as "bin/dspace import", a limited number at a time.  The standard output and
+ * error of each command are read as they are written, on threads of their own, and logged line by line
+ * under the label of the command, so that a command writing a lot can never block on a full pipe.  A command
+ * whose thread is interrupted is destroyed, so that none is left running once its runner is destroyed.
+ */
+public class ProcessRunner {
+
+    static Logger logger = Logger.getLogger(ProcessRunner.class);
+
+    private final ExecutorService pool;
+
+    /**
+     * @param limit number of commands run at once
+     */
+    public ProcessRunner(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("number of commands must be positive: " + limit);
+        }
+        pool = Executors.newFixedThreadPool(limit);
+    }
+
+    /**
+     * Run a command once one of the commands already submitted has finished, if the limit is reached
+     *
+     * @return the exit code of the command, or 1 if it could not be started
+     */
+    public Future<Integer> submit(final List<String> command, final String label) {
+        return pool.submit(new Callable<Integer>() {
+            public Integer call() {
+                return run(command, label);
+            }
+        });
+    }
+
+    /**
+     * Let the commands submitted so far finish, and accept no more
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Destroy the commands which are running, drop the ones waiting to run, and wait until they are all gone
+     */
+    public void destroy() {
+        pool.shutdownNow();
+        try {
+            while (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warn("Waiting for commands to be destroyed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Run a command and wait for it to finish; if the thread is interrupted, the command is destroyed
+     *
+     * @return the exit code of the command, or 1 if it could not be started
+     */
+    public static int run(List<String> command, String label) {
+        long start = System.currentTimeMillis();
+        logger.info("Running " + join(command));
+        Process p = null;
+        try {
+            p = new ProcessBuilder(command).start();
+            p.getOutputStream().close();
+            Thread out = pump(p.getInputStream(), label, Level.INFO);
+            Thread err = pump(p.getErrorStream(), label, Level.WARN);
+            int exit = p.waitFor();
+            out.join();
+            err.join();
+            logger.info(label + " exited with " + exit + " after " + (System.currentTimeMillis() - start) + " ms");
+            return exit;
+        } catch (IOException e) {
+            logger.error(label + " failed to start", e);
+            return 1;
+        } catch (InterruptedException e) {
+            logger.error(label + " interrupted; destroying it");
+            p.destroy();
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+    }
+
+    /**
+     * Log the lines read from in on a new thread until it is closed
+     */
+    private static Thread pump(final InputStream in, final String label, final Level level) {
+        Thread t = new Thread(label + " " + level.toString().toLowerCase()) {
+            public void run() {
+                try {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+                    try {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            logger.log(level, label + ": " + line);
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                } catch (IOException e) {
+                    logger.warn("Error reading output of " + label + ": " + e);
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private static String join(List<String> command) {
+        StringBuilder sb = new StringBuilder();
+        for (String arg : command) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(arg);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,102 @@
+package edu.princeton.dspace.etds;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The lines ETDMARCProcessor logs while processing a record.  Messages are templates whose {} placeholders
+ * are only filled in when the line is written, so a record costs no string building when neither the log
+ * nor the console wants the line.
+ *
+ * With sampling, the lines of successful lookups are only written for one record in N; misses and other
+ * problems are written for every record.
+ */
+public class RecordLog {
+
+    static Logger logger = Logger.getLogger(ETDMARCProcessor.class);
+
+    private static int sampleEvery = 1;
+
+    // whether the lines of the record being processed on this thread are written
+    private static final ThreadLocal<Boolean> sampled = new ThreadLocal<Boolean>() {
+        protected Boolean initialValue() {
+            return Boolean.TRUE;
+        }
+    };
+
+    /**
+     * Only write the lines of successful lookups for one record in n
+     */
+    public static void setSampleEvery(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("sampling interval must be positive: " + n);
+        }
+        sampleEvery = n;
+    }
+
+    /**
+     * Start processing the given record on this thread; the first record and every n-th one after it are
+     * sampled
+     */
+    static void begin(int recordnum) {
+        sampled.set(sampleEvery == 1 || (recordnum - 1) % sampleEvery == 0);
+    }
+
+    /**
+     * @return true if the lines of the record being processed on this thread are written
+     */
+    static boolean isSampled() {
+        return sampled.get();
+    }
+
+    /**
+     * Log a line about the record being processed, if it is sampled
+     */
+    static void info(String template, Object... args) {
+        if (isSampled()) {
+            always(template, args);
+        }
+    }
+
+    /**
+     * Log a line about the record being processed, whether or not it is sampled
+     */
+    static void always(String template, Object... args) {
+        boolean console = ETDMARCProcessor.verbose;
+        if (!console && !logger.isInfoEnabled()) {
+            return;
+        }
+        String s = format(template, args);
+        logger.info(s);
+        if (console) {
+            AsyncLogging.println(s);
+        }
+    }
+
+    /**
+     * Log a problem with the record being processed
+     */
+    static void error(String template, Object... args) {
+        String s = format(template, args);
+        logger.error(s);
+        if (ETDMARCProcessor.verbose) {
+            AsyncLogging.printlnErr(s);
+        }
+    }
+
+    /**
+     * @return the template with each {} replaced by the next argument
+     */
+    static String format(String template, Object... args) {
+        StringBuilder sb = new StringBuilder(template.length() + 64);
+        int arg = 0;
+        int from = 0;
+        int at;
+        while ((at = template.indexOf("{}", from)) >= 0) {
+            sb.append(template, from, at);
+            sb.append(arg < args.length ? String.valueOf(args[arg++]) : "{}");
+            from = at + 2;
+        }
+        sb.append(template, from, template.length());
+        return sb.toString();
+    }
+}
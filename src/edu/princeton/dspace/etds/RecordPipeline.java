@@ -0,0 +1,235 @@
+package edu.princeton.dspace.etds;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import org.marc4j.MarcWriter;
+import org.marc4j.marc.Record;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs ETDMARCProcessor.processRecord on several threads.  A reader thread feeds records into a bounded
+ * queue, a number of workers look up ARKs and fix the records, each with its own database connection, and
+ * the calling thread writes the results back in input order so that the output is identical to a
+ * sequential run.
+ */
+public class RecordPipeline {
+
+    static Logger logger = Logger.getLogger(RecordPipeline.class);
+
+    // Number of records which may be read ahead of the writer for each worker
+    private static final int RECORDS_PER_WORKER = 16;
+
+    /**
+     * A record travelling through the pipeline, or the end of the input (record == null and error == null)
+     */
+    private static class Item {
+        final int seq;
+        final Record record;
+        // offset in the input just past the record
+        final long position;
+        boolean found;
+        Exception error;
+
+        Item(int seq, Record record, long position) {
+            this.seq = seq;
+            this.record = record;
+            this.position = position;
+        }
+    }
+
+    private static final Item NO_MORE_RECORDS = new Item(-1, null, -1);
+
+    private final Configuration config;
+    private final ArkResolver resolver;
+    private final MarcFieldRules rules;
+    private final RunReport report;
+    private final int workers;
+
+    // number of the first record read, less one, when resuming from a checkpoint
+    private int firstRecord = 0;
+
+    private int recordCount = 0;
+    private int arksFound = 0;
+
+    /**
+     * @param resolver  finds the ARK for each record; workers open a connection if it needs one
+     * @param rules     the cleanup to apply to each record
+     * @param report    counts the records and how their ARKs were found; may be null
+     * @param workers   number of threads looking up and fixing records
+     */
+    public RecordPipeline(Configuration config, ArkResolver resolver, MarcFieldRules rules, RunReport report,
+                          int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("number of workers must be positive: " + workers);
+        }
+        this.config = config;
+        this.resolver = resolver;
+        this.rules = rules;
+        this.report = report;
+        this.workers = workers;
+    }
+
+    /**
+     * Process all records from reader and write them to writer in input order
+     *
+     * @param checkpointer  counts the records written and checkpoints the run
+     * @throws Exception the first error raised while reading or processing a record; records before the
+     *                   failing one have been written
+     */
+    public void run(final PositionedMarcReader reader, MarcWriter writer, Checkpointer checkpointer)
+            throws Exception {
+        firstRecord = checkpointer.getRecordCount();
+        int capacity = workers * RECORDS_PER_WORKER;
+        final BlockingQueue<Item> todo = new ArrayBlockingQueue<Item>(capacity);
+        final BlockingQueue<Item> done = new LinkedBlockingQueue<Item>();
+        // limits the records between the reader and the writer, including those waiting to be reordered
+        final Semaphore inFlight = new Semaphore(capacity);
+
+        logger.info("Processing records with " + workers + " workers");
+
+        Thread readerThread = new Thread("marc-reader") {
+            public void run() {
+                int seq = 0;
+                try {
+                    while (reader.hasNext()) {
+                        inFlight.acquire();
+                        Record record = reader.next();
+                        todo.put(new Item(seq, record, reader.getPosition()));
+                        seq = seq + 1;
+                    }
+                    done.put(new Item(seq, null, -1));
+                } catch (InterruptedException e) {
+                    // the writer gave up
+                } catch (Exception e) {
+                    Item failed = new Item(seq, null, -1);
+                    failed.error = e;
+                    done.add(failed);
+                } finally {
+                    for (int i = 0; i < workers; i++) {
+                        todo.offer(NO_MORE_RECORDS);
+                    }
+                }
+            }
+        };
+
+        List<Thread> workerThreads = new ArrayList<Thread>();
+        for (int i = 0; i < workers; i++) {
+            Thread t = new Thread("marc-worker-" + (i + 1)) {
+                public void run() {
+                    work(todo, done);
+                }
+            };
+            workerThreads.add(t);
+        }
+
+        readerThread.setDaemon(true);
+        readerThread.start();
+        for (Thread t : workerThreads) {
+            t.setDaemon(true);
+            t.start();
+        }
+
+        try {
+            // Write the records in sequence, holding back those which finished early
+            HashMap<Integer, Item> pending = new HashMap<Integer, Item>();
+            int next = 0;
+            while (true) {
+                Item item = pending.remove(next);
+                if (item == null) {
+                    item = done.take();
+                    if (item.seq != next) {
+                        pending.put(item.seq, item);
+                        continue;
+                    }
+                }
+                if (item.error != null) {
+                    throw item.error;
+                }
+                if (item.record == null) {
+                    break;
+                }
+                writer.write(item.record);
+                if (report != null) {
+                    report.written(firstRecord + item.seq + 1);
+                }
+                checkpointer.recordWritten(item.position, item.found);
+                recordCount = recordCount + 1;
+                if (item.found) {
+                    arksFound = arksFound + 1;
+                }
+                inFlight.release();
+                next = next + 1;
+            }
+        } finally {
+            readerThread.interrupt();
+            for (Thread t : workerThreads) {
+                t.interrupt();
+            }
+        }
+    }
+
+    private void work(BlockingQueue<Item> todo, BlockingQueue<Item> done) {
+        Connection db = null;
+        Exception failure = null;
+        if (resolver.needsConnection()) {
+            try {
+                db = config.getDBConnection();
+            } catch (Exception e) {
+                // fail every record given to this worker so that the writer stops at the first of them
+                logger.error("Worker " + Thread.currentThread().getName() + " cannot connect to the database", e);
+                failure = e;
+            }
+        }
+        try {
+            while (true) {
+                Item item = todo.take();
+                if (item == NO_MORE_RECORDS) {
+                    break;
+                }
+                if (failure != null) {
+                    item.error = failure;
+                } else {
+                    try {
+                        item.found = ETDMARCProcessor.processRecord(item.record, firstRecord + item.seq + 1, db,
+                                resolver, rules, report);
+                    } catch (Exception e) {
+                        item.error = e;
+                    }
+                }
+                done.put(item);
+            }
+        } catch (InterruptedException e) {
+            // the writer gave up
+        } finally {
+            if (db != null) {
+                try {
+                    db.close();
+                } catch (Exception e) {
+                    logger.warn("Trouble closing database connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of records written by this run
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return the number of records written by this run for which an ARK was found
+     */
+    public int getArksFound() {
+        return arksFound;
+    }
+}
@@ -0,0 +1,309 @@
+package edu.princeton.dspace.etds;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Summary of an ETDMARCProcessor run, built as the records are processed: how many records were
+ * processed, how their ARKs were found, and the titles for which no ARK was found.  It is written as JSON
+ * and as plain text next to the output file, so the counts no longer have to be grepped from the log.
+ *
+ * A record is counted once it is written, so that the counts always match the output and can be saved with
+ * each Checkpoint; a run resumed from a checkpoint carries on from the counts saved in it.
+ */
+public class RunReport {
+
+    private static final String PREFIX = "report.";
+
+    /**
+     * The lookup for a record which has not been written yet
+     */
+    private static class Lookup {
+        final String title;
+        final ArkMatch match;
+
+        Lookup(String title, ArkMatch match) {
+            this.title = title;
+            this.match = match;
+        }
+    }
+
+    private final String input;
+    private final String output;
+    private final int resumedAfter;
+    // whether the records before resumedAfter are counted, from the counts saved in the checkpoint
+    private boolean restored = false;
+    private final long start = System.currentTimeMillis();
+
+    private int processed = 0;
+    private int exact = 0;
+    private int normalized = 0;
+    private int cached = 0;
+    private int ambiguous = 0;
+    private int titleNotFound = 0;
+    private int itemWithoutArk = 0;
+
+    private final List<String> missingTitles = new ArrayList<String>();
+
+    // by record number
+    private final Map<Integer, Lookup> unwritten = new HashMap<Integer, Lookup>();
+
+    private boolean complete = false;
+
+    /**
+     * @param input   path of the input file
+     * @param output  path of the output file
+     * @param start   the checkpoint the run resumed from, or null
+     */
+    public RunReport(String input, String output, Checkpoint start) throws IOException {
+        this.input = input;
+        this.output = output;
+        this.resumedAfter = start != null ? start.getRecordCount() : 0;
+        if (start != null && start.getReport() != null) {
+            restore(start.getReport());
+        }
+    }
+
+    /**
+     * @return the JSON report kept for the given output file
+     */
+    public static File jsonFileFor(String outputfile) {
+        return new File(outputfile + ".report.json");
+    }
+
+    /**
+     * @return the plain-text report kept for the given output file
+     */
+    public static File textFileFor(String outputfile) {
+        return new File(outputfile + ".report.txt");
+    }
+
+    /**
+     * Note the lookup for a record; it is counted by written()
+     *
+     * @param recordnum  position of the record in the input file, starting at 1
+     * @param title      the title the ARK was looked up for
+     * @param match      the item found for the title, or null if there is none
+     */
+    public synchronized void add(int recordnum, String title, ArkMatch match) {
+        unwritten.put(recordnum, new Lookup(title, match));
+    }
+
+    /**
+     * Count a record once it has been written to the output
+     *
+     * @param recordnum  position of the record in the input file, starting at 1
+     */
+    public synchronized void written(int recordnum) {
+        Lookup lookup = unwritten.remove(recordnum);
+        if (lookup != null) {
+            count(lookup.title, lookup.match);
+        }
+    }
+
+    private void count(String title, ArkMatch match) {
+        processed = processed + 1;
+        if (match == null) {
+            titleNotFound = titleNotFound + 1;
+            missingTitles.add(title);
+            return;
+        }
+        if (match.getCandidates() > 1) {
+            ambiguous = ambiguous + 1;
+        }
+        if (match.getArk() == null) {
+            itemWithoutArk = itemWithoutArk + 1;
+            missingTitles.add(title);
+        } else if (match.getKind() == ArkMatch.EXACT) {
+            exact = exact + 1;
+        } else if (match.getKind() == ArkMatch.NORMALIZED) {
+            normalized = normalized + 1;
+        } else {
+            cached = cached + 1;
+        }
+    }
+
+    /**
+     * @return the counts and missing titles, to be saved with a checkpoint
+     */
+    public synchronized Properties getState() {
+        Properties props = new Properties();
+        props.setProperty(PREFIX + "records", Integer.toString(processed));
+        props.setProperty(PREFIX + "exact", Integer.toString(exact));
+        props.setProperty(PREFIX + "normalized", Integer.toString(normalized));
+        props.setProperty(PREFIX + "cached", Integer.toString(cached));
+        props.setProperty(PREFIX + "ambiguous", Integer.toString(ambiguous));
+        props.setProperty(PREFIX + "title_not_found", Integer.toString(titleNotFound));
+        props.setProperty(PREFIX + "item_without_ark", Integer.toString(itemWithoutArk));
+        props.setProperty(PREFIX + "missing_titles", Integer.toString(missingTitles.size()));
+        for (int i = 0; i < missingTitles.size(); i++) {
+            props.setProperty(PREFIX + "missing_title." + i, missingTitles.get(i));
+        }
+        return props;
+    }
+
+    /**
+     * @return whether a checkpoint property is part of the state saved by getState()
+     */
+    static boolean isState(String key) {
+        return key.startsWith(PREFIX);
+    }
+
+    private void restore(Properties props) throws IOException {
+        try {
+            processed = Integer.parseInt(props.getProperty(PREFIX + "records"));
+            exact = Integer.parseInt(props.getProperty(PREFIX + "exact"));
+            normalized = Integer.parseInt(props.getProperty(PREFIX + "normalized"));
+            cached = Integer.parseInt(props.getProperty(PREFIX + "cached"));
+            ambiguous = Integer.parseInt(props.getProperty(PREFIX + "ambiguous"));
+            titleNotFound = Integer.parseInt(props.getProperty(PREFIX + "title_not_found"));
+            itemWithoutArk = Integer.parseInt(props.getProperty(PREFIX + "item_without_ark"));
+            int missing = Integer.parseInt(props.getProperty(PREFIX + "missing_titles"));
+            for (int i = 0; i < missing; i++) {
+                String title = props.getProperty(PREFIX + "missing_title." + i);
+                if (title == null) {
+                    throw new IllegalArgumentException("missing title " + i);
+                }
+                missingTitles.add(title);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("the report saved with the checkpoint is not valid", e);
+        }
+        restored = true;
+    }
+
+    /**
+     * Mark the report as covering the whole input
+     */
+    public synchronized void setComplete() {
+        complete = true;
+    }
+
+    public synchronized int getArksFound() {
+        return exact + normalized + cached;
+    }
+
+    public synchronized int getMisses() {
+        return titleNotFound + itemWithoutArk;
+    }
+
+    /**
+     * Write the JSON and plain-text reports
+     */
+    public synchronized void write(File json, File text) throws IOException {
+        List<String> titles = new ArrayList<String>(missingTitles);
+        Collections.sort(titles);
+        long elapsed = System.currentTimeMillis() - start;
+
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(json), "UTF-8"));
+        try {
+            out.println("{");
+            out.println("  \"input\": " + quote(input) + ",");
+            out.println("  \"output\": " + quote(output) + ",");
+            out.println("  \"complete\": " + complete + ",");
+            out.println("  \"resumed_after\": " + resumedAfter + ",");
+            out.println("  \"counts_before_resume\": " + (restored || resumedAfter == 0) + ",");
+            out.println("  \"elapsed_ms\": " + elapsed + ",");
+            out.println("  \"records_processed\": " + processed + ",");
+            out.println("  \"arks_found\": " + getArksFound() + ",");
+            out.println("  \"exact_matches\": " + exact + ",");
+            out.println("  \"normalized_matches\": " + normalized + ",");
+            out.println("  \"cached_matches\": " + cached + ",");
+            out.println("  \"ambiguous_matches\": " + ambiguous + ",");
+            out.println("  \"misses\": " + getMisses() + ",");
+            out.println("  \"titles_not_found\": " + titleNotFound + ",");
+            out.println("  \"items_without_ark\": " + itemWithoutArk + ",");
+            out.print("  \"missing_titles\": [");
+            for (int i = 0; i < titles.size(); i++) {
+                out.print(i == 0 ? "\n    " : ",\n    ");
+                out.print(quote(titles.get(i)));
+            }
+            out.println(titles.isEmpty() ? "]" : "\n  ]");
+            out.println("}");
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("cannot write " + json.getPath());
+        }
+
+        out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(text), "UTF-8"));
+        try {
+            out.println("enhanced MARC records: " + new File(input).getName());
+            if (!complete) {
+                out.println("(incomplete: the run stopped before the end of the input)");
+            }
+            if (resumedAfter > 0 && restored) {
+                out.println("(resumed after record " + resumedAfter + ")");
+            } else if (resumedAfter > 0) {
+                out.println("(resumed after record " + resumedAfter + "; earlier records are not counted)");
+            }
+            out.println("");
+            out.println("number of records: " + processed);
+            out.println("number of matched records: " + getArksFound());
+            out.println("    exact title: " + exact);
+            out.println("    normalized title: " + normalized);
+            out.println("    ARK cache: " + cached);
+            out.println("    several items with the title: " + ambiguous);
+            out.println("number of unmatched records: " + getMisses());
+            out.println("    title not found: " + titleNotFound);
+            out.println("    item without ARK: " + itemWithoutArk);
+            out.println("");
+            out.println("titles without ARK:");
+            out.println("");
+            for (String title : titles) {
+                out.println(title);
+            }
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("cannot write " + text.getPath());
+        }
+    }
+
+    /**
+     * @return s as a JSON string
+     */
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,74 @@
+package edu.princeton.dspace.etds;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Compiled XSL stylesheets, kept for the whole run.  Each stylesheet is compiled into Templates once, keyed
+ * by its canonical path and recompiled only if its modification time changes; every transform then takes a
+ * new Transformer from the Templates, which is cheap and safe from several threads.
+ */
+public class StylesheetCache {
+
+    static Logger logger = Logger.getLogger(StylesheetCache.class);
+
+    /**
+     * A compiled stylesheet and the modification time of the file it was compiled from
+     */
+    private static class Entry {
+        final long lastModified;
+        final Templates templates;
+
+        Entry(long lastModified, Templates templates) {
+            this.lastModified = lastModified;
+            this.templates = templates;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+    // TransformerFactory is not thread safe, so compiling is serialized on it
+    private static final TransformerFactory factory = TransformerFactory.newInstance();
+
+    /**
+     * @return a new Transformer for the given stylesheet
+     */
+    public static Transformer newTransformer(File xslFile) throws IOException, TransformerConfigurationException {
+        return getTemplates(xslFile).newTransformer();
+    }
+
+    /**
+     * @return the compiled stylesheet, compiling it if it is not cached or has changed on disk
+     */
+    public static Templates getTemplates(File xslFile) throws IOException, TransformerConfigurationException {
+        File file = xslFile.getCanonicalFile();
+        String key = file.getPath();
+        long lastModified = file.lastModified();
+
+        Entry entry = cache.get(key);
+        if (entry != null && entry.lastModified == lastModified) {
+            return entry.templates;
+        }
+
+        synchronized (factory) {
+            entry = cache.get(key);
+            if (entry != null && entry.lastModified == lastModified) {
+                return entry.templates;
+            }
+            long start = System.currentTimeMillis();
+            Templates templates = factory.newTemplates(new StreamSource(file));
+            cache.put(key, new Entry(lastModified, templates));
+            logger.info("Compiled stylesheet " + key + " in " + (System.currentTimeMillis() - start) + " ms");
+            return templates;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package edu.princeton.dspace.etds;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Table from the normalized title (see TitleNormalizer) to the title and alternate title values of the
+ * items in a community carrying that title.  The keys are computed once when the table is loaded, so a
+ * title that did not match exactly costs a single hash lookup instead of a scan over all titles in the
+ * community.
+ */
+public class TitleKeyTable {
+
+    static Logger logger = Logger.getLogger(TitleKeyTable.class);
+
+    static final String select_titles = "SELECT resource_id,metadata_value_id,text_value FROM METADATAVALUE " +
+            "WHERE " + ETDMARCProcessor.titles_in_items + " " +
+            "AND " + ETDMARCProcessor.in_community;
+
+    /**
+     * A title or alternate title value of an item
+     */
+    public static class Row {
+        public final int resourceId;
+        public final int metadataValueId;
+
+        public Row(int resourceId, int metadataValueId) {
+            this.resourceId = resourceId;
+            this.metadataValueId = metadataValueId;
+        }
+    }
+
+    // normalized title -> the values carrying that title, in the order the database returned them
+    private HashMap<String, List<Row>> rows = new HashMap<String, List<Row>>();
+
+    TitleKeyTable() {
+    }
+
+    /**
+     * Load the normalized titles of all items in the given community
+     *
+     * @param db            connection to the DSpace database
+     * @param parentCommId  id of the community holding the ETD collections
+     */
+    public static TitleKeyTable load(Connection db, int parentCommId) throws SQLException {
+        TitleKeyTable table = new TitleKeyTable();
+        long start = System.currentTimeMillis();
+
+        PreparedStatement stmt = db.prepareStatement(select_titles);
+        try {
+            stmt.setInt(1, parentCommId);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                String title = rs.getString("text_value");
+                if (title != null) {
+                    table.add(title, new Row(rs.getInt("resource_id"), rs.getInt("metadata_value_id")));
+                }
+            }
+            rs.close();
+        } finally {
+            stmt.close();
+        }
+
+        logger.info("Loaded " + table.size() + " normalized titles for community " + parentCommId + " in " +
+                (System.currentTimeMillis() - start) + " ms");
+        return table;
+    }
+
+    /**
+     * Add the given title value of an item to the table
+     */
+    void add(String title, Row row) {
+        add(rows, TitleNormalizer.normalize(title), row);
+    }
+
+    static void add(HashMap<String, List<Row>> map, String key, Row row) {
+        List<Row> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<Row>(1);
+            map.put(key, list);
+        }
+        list.add(row);
+    }
+
+    /**
+     * @param key  a title already normalized with TitleNormalizer
+     * @return the values whose normalized title equals key, or null if there are none
+     */
+    public List<Row> get(String key) {
+        return rows.get(key);
+    }
+
+    /**
+     * @return the number of distinct normalized titles in the table
+     */
+    public int size() {
+        return rows.size();
+    }
+}
@@ -0,0 +1,41 @@
+package edu.princeton.dspace.etds;
+
+import java.util.Locale;
+
+/**
+ * Computes the upper case simplified form of a title that is used when an exact title match fails: every
+ * character matched by ETDMARCProcessor.charReplacePattern is dropped and the rest is upper cased.
+ *
+ * The key is built with a single scan over the title so that normalizing does not compile or run a regular
+ * expression for each record.
+ */
+public class TitleNormalizer {
+
+    // The characters matched by ETDMARCProcessor.charReplacePattern "[,:.;\" ]+"
+    private static final String REMOVED_CHARS = ",:.;\" ";
+
+    private TitleNormalizer() {
+    }
+
+    /**
+     * @return the simplified, upper case form of the given title
+     */
+    public static String normalize(String title) {
+        int len = title.length();
+        StringBuilder sb = null;
+        for (int i = 0; i < len; i++) {
+            char c = title.charAt(i);
+            if (REMOVED_CHARS.indexOf(c) >= 0) {
+                if (sb == null) {
+                    sb = new StringBuilder(len);
+                    sb.append(title, 0, i);
+                }
+            } else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        String simplified = (sb == null) ? title : sb.toString();
+        // the key must not depend on the locale the JVM runs in, e.g. the dotted and dotless i of Turkish
+        return simplified.toUpperCase(Locale.ROOT);
+    }
+}
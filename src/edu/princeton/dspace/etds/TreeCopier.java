@@ -0,0 +1,219 @@
+package edu.princeton.dspace.etds;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Copies directory trees.  Each directory is listed once; files are copied by the file system where it can
+ * (Files.copy), keeping their modification times and permissions, and may be copied on several threads.
+ * If a digest algorithm is given, each file is instead copied through a channel and its checksum computed
+ * from the bytes as they are copied, so that the copies can be checked against it with checksum().
+ */
+public class TreeCopier {
+
+    static Logger logger = Logger.getLogger(TreeCopier.class);
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final int threads;
+    private final String algorithm;
+
+    /**
+     * @param threads   number of files copied at once
+     * @param algorithm digest algorithm of the checksums, such as MD5, or null for none
+     */
+    public TreeCopier(int threads, String algorithm) throws NoSuchAlgorithmException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("number of threads must be positive: " + threads);
+        }
+        if (algorithm != null) {
+            // fail now rather than on the first file
+            MessageDigest.getInstance(algorithm);
+        }
+        this.threads = threads;
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Copy the tree at source to target, which must not exist
+     *
+     * @return the checksum of each file by its path relative to source, empty if no algorithm was given
+     */
+    public Map<Path, String> copy(Path source, Path target) throws IOException {
+        if (Files.exists(target)) {
+            throw new IOException("Destination file already exists");
+        }
+        return copy(source, target, false);
+    }
+
+    /**
+     * Copy what is in the directory source into the directory target, replacing files already there
+     *
+     * @return the checksum of each file by its path relative to source, empty if no algorithm was given
+     */
+    public Map<Path, String> copyContents(Path source, Path target) throws IOException {
+        if (!Files.isDirectory(target)) {
+            throw new IOException("Destination is not a directory");
+        }
+        return copy(source, target, true);
+    }
+
+    private Map<Path, String> copy(final Path source, final Path target, final boolean replace) throws IOException {
+        if (!Files.isDirectory(source)) {
+            throw new IOException("Source is not a directory");
+        }
+        final Map<Path, String> checksums = Collections.synchronizedMap(new TreeMap<Path, String>());
+        final ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        final List<Future<?>> copies = new ArrayList<Future<?>>();
+        try {
+            Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    Path copy = target.resolve(source.relativize(dir));
+                    if (!(replace && Files.isDirectory(copy))) {
+                        Files.createDirectory(copy);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFile(final Path file, BasicFileAttributes attrs) throws IOException {
+                    final Path relative = source.relativize(file);
+                    if (pool == null) {
+                        copyFile(file, target.resolve(relative), relative, replace, checksums);
+                    } else {
+                        copies.add(pool.submit(new Callable<Void>() {
+                            public Void call() throws IOException {
+                                copyFile(file, target.resolve(relative), relative, replace, checksums);
+                                return null;
+                            }
+                        }));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            for (Future<?> copy : copies) {
+                copy.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Error copying " + source, cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted copying " + source, e);
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+        return checksums;
+    }
+
+    private void copyFile(Path file, Path copy, Path relative, boolean replace, Map<Path, String> checksums)
+            throws IOException {
+        if (algorithm == null) {
+            if (replace) {
+                Files.copy(file, copy, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.copy(file, copy, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            return;
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            FileChannel out = replace
+                    ? FileChannel.open(copy, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING)
+                    : FileChannel.open(copy, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+            try {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                while (in.read(buffer) >= 0) {
+                    buffer.flip();
+                    digest.update(buffer.duplicate());
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        copyAttributes(file, copy);
+        checksums.put(relative, toHex(digest.digest()));
+    }
+
+    /**
+     * @return the checksum of a file, as copy() computes it
+     */
+    public static String checksum(Path file, String algorithm) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(algorithm);
+        FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private static void copyAttributes(Path file, Path copy) throws IOException {
+        PosixFileAttributeView posix = Files.getFileAttributeView(copy, PosixFileAttributeView.class);
+        if (posix != null) {
+            PosixFileAttributes attrs = Files.readAttributes(file, PosixFileAttributes.class);
+            posix.setPermissions(attrs.permissions());
+        }
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        Files.getFileAttributeView(copy, BasicFileAttributeView.class)
+                .setTimes(attrs.lastModifiedTime(), attrs.lastAccessTime(), null);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,193 @@
+package edu.princeton.dspace.etds;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Stages single-batch zips straight from the incoming folder, without unpacking them there.  Each zip is
+ * mounted as a zip file system and the files ItemImport and the transforms need are written once, into a
+ * batch folder in the staging folder; hidden files and Mac resource forks are left in the zip.  The zip
+ * itself is moved next to the batch folder, and once the batch is imported it goes to the holding folder
+ * unchanged instead of an archive rebuilt from the batch folder.
+ */
+public class ZipStager {
+
+    static Logger logger = Logger.getLogger(ZipStager.class);
+
+    private static final String ZIP_EXTENSION = ".zip";
+
+    private final int threads;
+
+    /**
+     * @param threads number of zips staged at once
+     */
+    public ZipStager(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("number of threads must be positive: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Stage the given zips which hold a single batch.  Zips of several batches, and zips which cannot be
+     * staged, are left where they are to be unpacked as usual.
+     *
+     * @return the batch folders created in stagingFolder
+     */
+    public List<File> stage(List<File> zips, final File stagingFolder) throws InterruptedException {
+        List<File> staged = new ArrayList<File>();
+        if (zips.isEmpty()) {
+            return staged;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, zips.size()));
+        try {
+            List<Future<File>> results = new ArrayList<Future<File>>(zips.size());
+            for (final File zip : zips) {
+                results.add(pool.submit(new Callable<File>() {
+                    public File call() throws IOException {
+                        return stageZip(zip, stagingFolder);
+                    }
+                }));
+            }
+            for (int i = 0; i < zips.size(); i++) {
+                try {
+                    File batch = results.get(i).get();
+                    if (batch != null) {
+                        staged.add(batch);
+                    }
+                } catch (ExecutionException e) {
+                    logger.error("Error staging zip file " + zips.get(i).getName(), e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return staged;
+    }
+
+    /**
+     * Write the files of a single-batch zip into a new batch folder in stagingFolder, and move the zip next
+     * to it
+     *
+     * @return the batch folder, or null if the zip does not hold a single batch
+     */
+    static File stageZip(File zip, File stagingFolder) throws IOException {
+        String name = zip.getName().substring(0, zip.getName().length() - ZIP_EXTENSION.length());
+        final Path batch = stagingFolder.toPath().resolve(name).toAbsolutePath().normalize();
+        Path original = originalOf(batch.toFile()).toPath();
+
+        long start = System.currentTimeMillis();
+        FileSystem fs = FileSystems.newFileSystem(zip.toPath(), (ClassLoader) null);
+        try {
+            final Path root = fs.getPath("/");
+            if (!isSingleBatch(root)) {
+                return null;
+            }
+            logger.info("Staging " + zip.getName() + " without unpacking it");
+            if (Files.exists(batch) || Files.exists(original)) {
+                throw new IOException("Unable to stage " + zip.getName() + " since " + name + " is already staged");
+            }
+            Files.createDirectory(batch);
+            try {
+                Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                        if (dir.equals(root)) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        if (isSkipped(dir)) {
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                        Files.createDirectories(target(root, dir, batch));
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        if (!isSkipped(file)) {
+                            Files.copy(file, target(root, file, batch));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException err) {
+                FileTrees.delete(batch);
+                throw err;
+            }
+        } finally {
+            fs.close();
+        }
+
+        Files.move(zip.toPath(), original);
+        logger.info("Staged " + name + " in " + (System.currentTimeMillis() - start) + " ms");
+        return batch.toFile();
+    }
+
+    /**
+     * Move the zip a staged batch came from, if it came from one, to target, which must not exist
+     *
+     * @return false if the batch was not staged from a zip
+     */
+    public static boolean moveOriginal(File batch, File target) throws IOException {
+        File original = originalOf(batch);
+        if (!original.isFile()) {
+            return false;
+        }
+        Files.move(original.toPath(), target.toPath());
+        return true;
+    }
+
+    private static File originalOf(File batch) {
+        return new File(batch.getParentFile(), batch.getName() + ZIP_EXTENSION);
+    }
+
+    /**
+     * A zip with a file at its top level holds the files of one batch, without a parent folder
+     */
+    private static boolean isSingleBatch(Path root) throws IOException {
+        DirectoryStream<Path> entries = Files.newDirectoryStream(root);
+        try {
+            for (Path entry : entries) {
+                if (Files.isRegularFile(entry)) {
+                    return true;
+                }
+            }
+        } finally {
+            entries.close();
+        }
+        return false;
+    }
+
+    private static boolean isSkipped(Path path) {
+        String name = path.getFileName().toString().replace("/", "");
+        return name.startsWith(".") || name.equals("__MACOSX");
+    }
+
+    /**
+     * @return where path in the zip goes in the batch folder
+     * @throws IOException if it would go outside of the batch folder
+     */
+    private static Path target(Path root, Path path, Path batch) throws IOException {
+        Path target = batch.resolve(root.relativize(path).toString()).normalize();
+        if (!target.startsWith(batch) || target.equals(batch)) {
+            throw new IOException("Entry " + path + " is outside of " + batch);
+        }
+        return target;
+    }
+}